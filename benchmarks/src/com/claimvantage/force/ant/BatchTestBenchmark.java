@@ -0,0 +1,71 @@
+package com.claimvantage.force.ant;
+
+import org.apache.tools.ant.Project;
+import org.apache.tools.ant.types.FileSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Working out the batchtest names from a fileset of class files, by name and by content.
+ * A new BatchTest is used each time as the names are otherwise only worked out once;
+ * the test discovery cache is warm after the first call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BatchTestBenchmark {
+
+    @Param({"1000", "5000"})
+    public int files;
+
+    @Param({"false", "true"})
+    public boolean testsbycontent;
+
+    private Project project;
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = File.createTempFile("batch-test", "");
+        dir.delete();
+        Fixtures.classFiles(new File(dir, "classes"), files);
+        project = new Project();
+        project.init();
+        project.setBaseDir(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public List<String> getFilenames() {
+        BatchTest batchTest = new BatchTest(project);
+        batchTest.setTestsbycontent(testsbycontent);
+        FileSet fileSet = new FileSet();
+        fileSet.setDir(new File(dir, "classes"));
+        fileSet.setIncludes(testsbycontent ? "*.cls" : "Test*.cls");
+        batchTest.addFileSet(fileSet);
+        return batchTest.getFilenames();
+    }
+}
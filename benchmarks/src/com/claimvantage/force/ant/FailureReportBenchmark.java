@@ -0,0 +1,66 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.DeployResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building the failure message and file for a failed deploy, as done by the task's failOnError.
+ * The unlimited summary is the size of message the task used to build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class FailureReportBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int tests;
+
+    private DeployResult result;
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        result = Fixtures.failedDeployResult(tests);
+        dir = File.createTempFile("failure-report", "");
+        dir.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public String summary() {
+        return new FailureReport(result).summary(100, null);
+    }
+
+    @Benchmark
+    public String unlimitedSummary() {
+        return new FailureReport(result).summary(Integer.MAX_VALUE, null);
+    }
+
+    @Benchmark
+    public File write() {
+        return new FailureReport(result).write(dir, "deploy-failures.xml");
+    }
+}
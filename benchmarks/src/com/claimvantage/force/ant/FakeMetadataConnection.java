@@ -0,0 +1,148 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.AsyncResult;
+import com.sforce.soap.metadata.DeployDetails;
+import com.sforce.soap.metadata.DeployMessage;
+import com.sforce.soap.metadata.DeployOptions;
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.DeployStatus;
+import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.soap.metadata.RunTestFailure;
+import com.sforce.soap.metadata.RunTestSuccess;
+import com.sforce.soap.metadata.RunTestsResult;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for the Metadata API that never goes near the network.
+ * <p>
+ * Each deploy completes after a set number of status checks without details, reporting the components
+ * and tests as progressing evenly until then. A detailed status check builds a new copy of
+ * the configured result each time (as deserializing a real response would), holding the
+ * tests completed so far. The number of each kind of call is counted.
+ */
+public class FakeMetadataConnection extends MetadataConnection {
+
+    private static final int COMPONENTS = 1000;
+
+    private int tests;
+    private int failures;
+    private int coverageClasses;
+    private int flows;
+    private int stackTraceLines;
+    private int checksToComplete;
+
+    private Map<String, Integer> checks = new HashMap<String, Integer>();
+    private Map<String, Calendar> created = new HashMap<String, Calendar>();
+    private AtomicInteger deployCalls = new AtomicInteger();
+    private AtomicInteger checkDeployStatusCalls = new AtomicInteger();
+    private AtomicInteger detailedCalls = new AtomicInteger();
+
+    /**
+     * @see Fixtures#runTestsResult(int, int, int, int, int)
+     */
+    public FakeMetadataConnection(int tests, int failures, int coverageClasses, int flows, int stackTraceLines,
+            int checksToComplete) throws ConnectionException {
+        super(config());
+        this.tests = tests;
+        this.failures = failures;
+        this.coverageClasses = coverageClasses;
+        this.flows = flows;
+        this.stackTraceLines = stackTraceLines;
+        this.checksToComplete = Math.max(1, checksToComplete);
+    }
+
+    public AsyncResult deploy(byte[] zipFile, DeployOptions deployOptions) {
+        String id = "0Af" + deployCalls.incrementAndGet();
+        synchronized (this) {
+            checks.put(id, 0);
+            created.put(id, Calendar.getInstance());
+        }
+        AsyncResult result = new AsyncResult();
+        result.setId(id);
+        result.setDone(false);
+        return result;
+    }
+
+    public DeployResult checkDeployStatus(String asyncProcessId, boolean includeDetails) {
+        checkDeployStatusCalls.incrementAndGet();
+        int check;
+        Calendar createdDate;
+        synchronized (this) {
+            // Only the lightweight checks move the deploy on, asking for the details just looks at it
+            Integer previous = checks.get(asyncProcessId);
+            check = previous == null ? checksToComplete : Math.min(checksToComplete, previous + (includeDetails ? 0 : 1));
+            checks.put(asyncProcessId, check);
+            createdDate = created.get(asyncProcessId);
+        }
+        boolean done = check >= checksToComplete;
+        int completed = (int) ((long) tests * check / checksToComplete);
+
+        DeployResult result = new DeployResult();
+        result.setId(asyncProcessId);
+        result.setDone(done);
+        result.setSuccess(done && failures == 0);
+        result.setStatus(done ? (failures == 0 ? DeployStatus.Succeeded : DeployStatus.Failed) : DeployStatus.InProgress);
+        result.setCreatedDate(createdDate);
+        result.setStartDate(createdDate);
+        if (done) {
+            result.setCompletedDate(Calendar.getInstance());
+        }
+        result.setNumberComponentsTotal(COMPONENTS);
+        result.setNumberComponentsDeployed(COMPONENTS * check / checksToComplete);
+        result.setNumberTestsTotal(tests);
+        result.setNumberTestsCompleted(completed);
+        result.setNumberTestErrors(done ? failures : 0);
+        if (includeDetails) {
+            detailedCalls.incrementAndGet();
+            result.setDetails(details(completed));
+        }
+        return result;
+    }
+
+    public int getDeployCalls() {
+        return deployCalls.get();
+    }
+
+    public int getCheckDeployStatusCalls() {
+        return checkDeployStatusCalls.get();
+    }
+
+    /**
+     * The number of checkDeployStatus calls that asked for the details.
+     */
+    public int getDetailedCalls() {
+        return detailedCalls.get();
+    }
+
+    private DeployDetails details(int completed) {
+        RunTestsResult rtr = Fixtures.runTestsResult(tests, failures, coverageClasses, flows, stackTraceLines);
+        if (completed < tests) {
+            // Only the first part of the run has happened so far
+            int successes = (int) ((long) rtr.getSuccesses().length * completed / tests);
+            int failed = (int) ((long) rtr.getFailures().length * completed / tests);
+            rtr.setSuccesses(Arrays.copyOf(rtr.getSuccesses(), successes, RunTestSuccess[].class));
+            rtr.setFailures(Arrays.copyOf(rtr.getFailures(), failed, RunTestFailure[].class));
+            rtr.setNumTestsRun(successes + failed);
+            rtr.setNumFailures(failed);
+        }
+        DeployDetails details = new DeployDetails();
+        details.setComponentSuccesses(new DeployMessage[0]);
+        details.setComponentFailures(new DeployMessage[0]);
+        details.setRunTestResult(rtr);
+        return details;
+    }
+
+    private static ConnectorConfig config() {
+        ConnectorConfig config = new ConnectorConfig();
+        config.setServiceEndpoint("http://localhost/services/Soap/m/44.0");
+        config.setSessionId("fake");
+        return config;
+    }
+}
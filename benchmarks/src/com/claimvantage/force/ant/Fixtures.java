@@ -0,0 +1,196 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.CodeCoverageResult;
+import com.sforce.soap.metadata.CodeCoverageWarning;
+import com.sforce.soap.metadata.CodeLocation;
+import com.sforce.soap.metadata.DeployDetails;
+import com.sforce.soap.metadata.DeployMessage;
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.FlowCoverageResult;
+import com.sforce.soap.metadata.FlowCoverageWarning;
+import com.sforce.soap.metadata.RunTestFailure;
+import com.sforce.soap.metadata.RunTestSuccess;
+import com.sforce.soap.metadata.RunTestsResult;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic results and source trees shaped like those of a large org.
+ * <p>
+ * Tests are spread ten to a class and by default one in fifty fails and every test class
+ * has a coverage result. Each coverage result has a fifth of its lines not covered.
+ */
+public class Fixtures {
+
+    static final int TESTS_PER_CLASS = 10;
+    static final int FAILURE_EVERY = 50;
+    static final int LINES_PER_CLASS = 200;
+
+    private Fixtures() {
+    }
+
+    public static RunTestsResult runTestsResult(int tests) {
+        return runTestsResult(tests, tests / FAILURE_EVERY, Math.max(1, tests / TESTS_PER_CLASS), 0, 1);
+    }
+
+    /**
+     * @param failureCount how many of the tests fail, spread evenly through them
+     * @param coverageClasses the number of classes with code coverage results
+     * @param flows the number of flow coverage results, a tenth of them with no coverage and a warning
+     * @param stackTraceLines the number of lines in each failure's stack trace
+     */
+    public static RunTestsResult runTestsResult(int tests, int failureCount, int coverageClasses, int flows,
+            int stackTraceLines) {
+        failureCount = Math.min(tests, failureCount);
+        RunTestSuccess[] successes = new RunTestSuccess[tests - failureCount];
+        RunTestFailure[] failures = new RunTestFailure[failureCount];
+        int s = 0;
+        int f = 0;
+        for (int i = 0; i < tests; i++) {
+            String className = "Test" + (i / TESTS_PER_CLASS);
+            String methodName = "method" + (i % TESTS_PER_CLASS);
+            // Spread the failures evenly using the Bresenham test
+            if ((long) (i + 1) * failureCount / tests > (long) i * failureCount / tests) {
+                RunTestFailure failure = new RunTestFailure();
+                failure.setName(className);
+                failure.setMethodName(methodName);
+                failure.setTime(120);
+                failure.setType("Class");
+                failure.setMessage("System.AssertException: Assertion Failed: Expected: 1, Actual: 2");
+                failure.setStackTrace(stackTrace(className, methodName, stackTraceLines));
+                failures[f++] = failure;
+            } else {
+                RunTestSuccess success = new RunTestSuccess();
+                success.setName(className);
+                success.setMethodName(methodName);
+                success.setTime(80);
+                successes[s++] = success;
+            }
+        }
+        CodeCoverageResult[] coverage = new CodeCoverageResult[coverageClasses];
+        for (int i = 0; i < coverageClasses; i++) {
+            coverage[i] = codeCoverageResult("Class" + i, i % 4 == 0 ? "Trigger" : "Class");
+        }
+        FlowCoverageResult[] flowCoverage = new FlowCoverageResult[flows];
+        List<FlowCoverageWarning> flowWarnings = new ArrayList<FlowCoverageWarning>();
+        for (int i = 0; i < flows; i++) {
+            boolean uncovered = i % 10 == 0;
+            flowCoverage[i] = new FlowCoverageResult();
+            flowCoverage[i].setFlowName("Flow" + i);
+            flowCoverage[i].setFlowId("301" + i);
+            flowCoverage[i].setNumElements(20);
+            flowCoverage[i].setNumElementsNotCovered(uncovered ? 20 : 5);
+            if (uncovered) {
+                FlowCoverageWarning warning = new FlowCoverageWarning();
+                warning.setFlowName("Flow" + i);
+                warning.setMessage("Flow Flow" + i + " has no test coverage");
+                flowWarnings.add(warning);
+            }
+        }
+        RunTestsResult rtr = new RunTestsResult();
+        rtr.setSuccesses(successes);
+        rtr.setFailures(failures);
+        rtr.setNumTestsRun(tests);
+        rtr.setNumFailures(failureCount);
+        rtr.setTotalTime(80.0d * (tests - failureCount) + 120.0d * failureCount);
+        rtr.setCodeCoverage(coverage);
+        rtr.setCodeCoverageWarnings(new CodeCoverageWarning[0]);
+        rtr.setFlowCoverage(flowCoverage);
+        rtr.setFlowCoverageWarnings(flowWarnings.toArray(new FlowCoverageWarning[flowWarnings.size()]));
+        return rtr;
+    }
+
+    /**
+     * A failed deploy with the test results plus one component failure per class.
+     */
+    public static DeployResult failedDeployResult(int tests) {
+        RunTestsResult rtr = runTestsResult(tests);
+        DeployMessage[] componentFailures = new DeployMessage[rtr.getCodeCoverage().length];
+        for (int i = 0; i < componentFailures.length; i++) {
+            DeployMessage message = new DeployMessage();
+            message.setFileName("classes/Class" + i + ".cls");
+            message.setFullName("Class" + i);
+            message.setComponentType("ApexClass");
+            message.setLineNumber(17);
+            message.setColumnNumber(9);
+            message.setProblem("Variable does not exist: value" + i);
+            componentFailures[i] = message;
+        }
+        DeployDetails details = new DeployDetails();
+        details.setComponentSuccesses(new DeployMessage[0]);
+        details.setComponentFailures(componentFailures);
+        details.setRunTestResult(rtr);
+        DeployResult result = new DeployResult();
+        result.setSuccess(false);
+        result.setDone(true);
+        result.setDetails(details);
+        return result;
+    }
+
+    /**
+     * Writes count class files to the directory, every third one a test class.
+     */
+    public static void classFiles(File dir, int count) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory '" + dir + "'");
+        }
+        for (int i = 0; i < count; i++) {
+            boolean test = i % 3 == 0;
+            String name = (test ? "Test" : "Class") + i;
+            Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir, name + ".cls")), "UTF8");
+            try {
+                if (test) {
+                    writer.write("@isTest\n");
+                }
+                writer.write("public class " + name + " {\n");
+                for (int j = 0; j < 40; j++) {
+                    writer.write("    // Line " + j + " calls Class" + ((i + j) % count) + "\n");
+                    writer.write("    Integer value" + j + " = Class" + ((i + j) % count) + ".value;\n");
+                }
+                writer.write("}\n");
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    public static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static String stackTrace(String className, String methodName, int lines) {
+        StringBuilder sb = new StringBuilder("Class." + className + "." + methodName + ": line 42, column 1");
+        for (int i = 1; i < lines; i++) {
+            sb.append("\nClass.Service").append(i).append(".call: line ").append(i * 7).append(", column 1");
+        }
+        return sb.toString();
+    }
+
+    private static CodeCoverageResult codeCoverageResult(String name, String type) {
+        int notCovered = LINES_PER_CLASS / 5;
+        CodeLocation[] locations = new CodeLocation[notCovered];
+        for (int i = 0; i < notCovered; i++) {
+            locations[i] = new CodeLocation();
+            locations[i].setLine(i * 5 + 1);
+        }
+        CodeCoverageResult coverage = new CodeCoverageResult();
+        coverage.setName(name);
+        coverage.setType(type);
+        coverage.setNumLocations(LINES_PER_CLASS);
+        coverage.setNumLocationsNotCovered(notCovered);
+        coverage.setLocationsNotCovered(locations);
+        return coverage;
+    }
+}
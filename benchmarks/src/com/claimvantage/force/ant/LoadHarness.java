@@ -0,0 +1,176 @@
+package com.claimvantage.force.ant;
+
+import com.salesforce.ant.DeployWithXmlReportTask;
+import com.sforce.soap.metadata.AsyncResult;
+import com.sforce.soap.metadata.MetadataConnection;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.Project;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs a deploy against a {@link FakeMetadataConnection} and reports the peak heap, wall time
+ * and the number of checkDeployStatus calls.
+ * <p>
+ * The deploy and status polling that DeployTask does are simulated and the completed deploy
+ * is handed to DeployWithXmlReportTask.handleResponse, so the report writing, result
+ * handling and failure message building all run for real. Settings are given as name=value
+ * arguments, e.g. tests=50000 failures=5000 coverage=8000 flows=2000 stack=40 checks=20
+ * perclass=true live=true dir=/tmp/load.
+ */
+public class LoadHarness {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new HashMap<String, String>();
+        settings.put("tests", "20000");
+        settings.put("failures", "2000");
+        settings.put("coverage", "5000");
+        settings.put("flows", "1000");
+        settings.put("stack", "30");
+        settings.put("checks", "10");
+        settings.put("perclass", "false");
+        settings.put("live", "false");
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals <= 0) {
+                throw new IllegalArgumentException("Expected name=value but got " + arg);
+            }
+            settings.put(arg.substring(0, equals), arg.substring(equals + 1));
+        }
+        File dir = settings.containsKey("dir") ? new File(settings.get("dir")) : createTempDir();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Failed to create directory '" + dir + "'");
+        }
+
+        FakeMetadataConnection fake = new FakeMetadataConnection(
+                Integer.parseInt(settings.get("tests")),
+                Integer.parseInt(settings.get("failures")),
+                Integer.parseInt(settings.get("coverage")),
+                Integer.parseInt(settings.get("flows")),
+                Integer.parseInt(settings.get("stack")),
+                Integer.parseInt(settings.get("checks"))
+                );
+
+        Project project = new Project();
+        project.init();
+        project.setBaseDir(dir);
+        DeployWithXmlReportTask task = new DeployWithXmlReportTask();
+        task.setProject(project);
+        task.setJunitreportdir(new File(dir, "junit"));
+        task.setJunitreportperclass(Boolean.parseBoolean(settings.get("perclass")));
+        task.setJunitreportlive(Boolean.parseBoolean(settings.get("live")));
+        task.setCoveragereportdir(new File(dir, "coverage"));
+
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+
+        // What DeployTask does: deploy then poll until done using the connection the task hands it,
+        // wrapped the same way the task's getMetadataConnection wraps the logged in connection
+        CachingMetadataConnection connection = CachingMetadataConnection.wrap(fake);
+        LiveXmlReport liveReport = null;
+        if (task.isJunitreportlive()) {
+            liveReport = new LiveXmlReport(task.getJunitreportdir());
+            connection.addListener(liveReport);
+        }
+        AsyncResult deploy = connection.deploy(new byte[0], null);
+        while (!connection.checkDeployStatus(deploy.getId(), false).isDone()) {
+            // The fake completes after a fixed number of checks so there's no need to wait
+        }
+        long polled = System.nanoTime();
+
+        String outcome = "succeeded";
+        try {
+            handleResponse(task, connection, deploy.getId());
+        } catch (BuildException e) {
+            outcome = "failed with a message of " + e.getMessage().length() + " characters";
+        }
+        if (liveReport != null) {
+            liveReport.close();
+        }
+        long end = System.nanoTime();
+
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.println("settings: " + settings);
+        System.out.println("deploy " + outcome);
+        System.out.println("wall time: " + (end - start) / 1000000 + " ms (handleResponse "
+                + (end - polled) / 1000000 + " ms)");
+        System.out.println("heap peak: " + peak / (1024 * 1024) + " MB");
+        System.out.println("checkDeployStatus calls: " + fake.getCheckDeployStatusCalls()
+                + " (" + fake.getDetailedCalls() + " with details)");
+        System.out.println("reports: " + dir);
+    }
+
+    // The status result type is internal to ant-salesforce.jar so it is implemented by a proxy
+    private static void handleResponse(DeployWithXmlReportTask task, MetadataConnection connection, final String id)
+            throws Exception {
+        Method handleResponse = null;
+        for (Method method : task.getClass().getMethods()) {
+            if (method.getName().equals("handleResponse") && method.getParameterTypes().length == 2) {
+                handleResponse = method;
+            }
+        }
+        if (handleResponse == null || !handleResponse.getParameterTypes()[1].isInterface()) {
+            throw new IllegalStateException("handleResponse(MetadataConnection, StatusResult) not found");
+        }
+        Class<?> statusType = handleResponse.getParameterTypes()[1];
+        Object status = Proxy.newProxyInstance(statusType.getClassLoader(), new Class<?>[] {statusType},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getId")) {
+                            return id;
+                        }
+                        if (method.getName().equals("isDone")) {
+                            return Boolean.TRUE;
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+        try {
+            handleResponse.invoke(task, connection, status);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0.0d;
+        }
+        return null;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("load-harness", "");
+        if (!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("Failed to create directory '" + dir + "'");
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,65 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.RunTestsResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JUnit XML report generation and the coverage summary it includes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class XmlReportBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int tests;
+
+    private RunTestsResult rtr;
+    private File dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        rtr = Fixtures.runTestsResult(tests);
+        dir = File.createTempFile("xml-report", "");
+        dir.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.delete(dir);
+    }
+
+    @Benchmark
+    public void report() {
+        new XmlReport(dir).report(rtr);
+    }
+
+    @Benchmark
+    public void reportPerClass() {
+        new XmlReport(dir).reportPerClass(rtr, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Benchmark
+    public String coverageSummary() {
+        return new XmlReport(dir).coverageSummary(rtr);
+    }
+}
@@ -1,22 +1,45 @@
 package com.claimvantage.force.ant;
 
+import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 import org.apache.tools.ant.types.FileSet;
 import org.apache.tools.ant.types.Resource;
 import org.apache.tools.ant.types.ResourceCollection;
+import org.apache.tools.ant.types.resources.FileProvider;
 import org.apache.tools.ant.types.resources.Resources;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Modeled on org.apache.tools.ant.taskdefs.optional.junit.BatchTest.
+ * <p>
+ * When a changedfiles list is supplied only the tests that reference (directly or
+ * indirectly) one of the changed files are returned, see {@link ImpactIndex}.
+ * When testsbycontent is set the classes are only used if they contain tests, see {@link TestDiscovery}.
+ * The names are worked out once and then reused for the rest of the build.
  */
 public class BatchTest {
     
+    private static final String DEFAULT_IMPACT_INDEX = ".apex-impact-index";
+    private static final String DEFAULT_DISCOVERY_CACHE = ".apex-test-discovery";
+
     private String namespace;
     private Project project;
     private Resources resources = new Resources();
+    private File changedfiles;
+    private File impactindex;
+    private File sourcedir;
+    private boolean testsbycontent;
+    private File discoverycache;
+    private List<String> filenames;
 
     public BatchTest(Project project) {
         this.project = project;
@@ -30,6 +53,63 @@ public class BatchTest {
         this.namespace = namespace;
     }
 
+    public File getChangedfiles() {
+        return changedfiles;
+    }
+
+    /**
+     * A file listing the paths of the changed files one per line (e.g. the output of git diff --name-only).
+     * When set only the tests affected by those changes are returned.
+     */
+    public void setChangedfiles(File changedfiles) {
+        this.changedfiles = changedfiles;
+    }
+
+    public File getImpactindex() {
+        return impactindex;
+    }
+
+    /**
+     * Where the reference index is kept between builds, defaults to .apex-impact-index in the project base directory.
+     */
+    public void setImpactindex(File impactindex) {
+        this.impactindex = impactindex;
+    }
+
+    public File getSourcedir() {
+        return sourcedir;
+    }
+
+    /**
+     * The directory whose .cls and .trigger files are indexed, needed with changedfiles.
+     * DeployWithXmlReportTask defaults it to its deployRoot.
+     */
+    public void setSourcedir(File sourcedir) {
+        this.sourcedir = sourcedir;
+    }
+
+    public boolean isTestsbycontent() {
+        return testsbycontent;
+    }
+
+    /**
+     * When true only classes containing an @isTest annotation or the testMethod keyword are used.
+     */
+    public void setTestsbycontent(boolean testsbycontent) {
+        this.testsbycontent = testsbycontent;
+    }
+
+    public File getDiscoverycache() {
+        return discoverycache;
+    }
+
+    /**
+     * Where the content detection results are kept between builds, defaults to .apex-test-discovery in the project base directory.
+     */
+    public void setDiscoverycache(File discoverycache) {
+        this.discoverycache = discoverycache;
+    }
+
     /**
      * Add a new FileSet instance to this BatchTest.
      * Whatever the FileSet is, only filename that are <tt>.cls</tt> will be considered as 'candidates'.
@@ -47,21 +127,119 @@ public class BatchTest {
      */
     public void add(ResourceCollection rc) {
         resources.add(rc);
+        filenames = null;
     }
 
     public List<String> getFilenames() {
+        if (filenames == null) {
+            filenames = findFilenames();
+        }
+        return new ArrayList<String>(filenames);
+    }
+
+    private List<String> findFilenames() {
         final String extension = ".cls";
         
         String prefix = namespace != null && namespace.trim().length() > 0 ? namespace.trim() + "." : "";
-        List<String> names = new ArrayList<String>();
+        List<Resource> candidates = new ArrayList<Resource>();
         for (Resource r : resources) {
             if (r.isExists()) {
-                String pathname = r.getName();
-                if (pathname.endsWith(extension)) {
-                    names.add(prefix + pathname.substring(0, pathname.length() - extension.length()));
+                if (r.getName().endsWith(extension)) {
+                    candidates.add(r);
                 }
             }
         }
+        if (testsbycontent) {
+            candidates = testClasses(candidates);
+        }
+        List<String> names = new ArrayList<String>();
+        for (Resource r : candidates) {
+            String pathname = r.getName();
+            names.add(prefix + pathname.substring(0, pathname.length() - extension.length()));
+        }
+        if (changedfiles != null) {
+            names = affectedTests(names, prefix);
+        }
+        return names;
+    }
+
+    // Resources that are not files can't be read so are kept
+    private List<Resource> testClasses(List<Resource> candidates) {
+        List<File> files = new ArrayList<File>();
+        for (Resource r : candidates) {
+            FileProvider fp = r.as(FileProvider.class);
+            if (fp != null) {
+                files.add(fp.getFile());
+            }
+        }
+        TestDiscovery discovery = new TestDiscovery(
+                discoverycache != null ? discoverycache : new File(project.getBaseDir(), DEFAULT_DISCOVERY_CACHE),
+                Runtime.getRuntime().availableProcessors());
+        Set<File> tests = discovery.testClasses(files);
+        project.log("test discovery: " + discovery.getRead() + " files read", Project.MSG_VERBOSE);
+
+        List<Resource> testClasses = new ArrayList<Resource>();
+        for (Resource r : candidates) {
+            FileProvider fp = r.as(FileProvider.class);
+            if (fp == null || tests.contains(fp.getFile())) {
+                testClasses.add(r);
+            }
+        }
+        return testClasses;
+    }
+
+    private List<String> affectedTests(List<String> names, String prefix) {
+        ImpactIndex index = new ImpactIndex(impactindex != null
+                ? impactindex
+                : new File(project.getBaseDir(), DEFAULT_IMPACT_INDEX));
+        index.update(sources());
+        Set<String> affected = index.affectedNames(readChangedFiles());
+        project.log("impact index: " + index.getParsed() + " files parsed", Project.MSG_VERBOSE);
+
+        for (Iterator<String> i = names.iterator(); i.hasNext(); ) {
+            String name = i.next().substring(prefix.length());
+            if (!affected.contains(new File(name).getName().toLowerCase())) {
+                i.remove();
+            }
+        }
+        project.log("tests affected by changes: " + names, Project.MSG_VERBOSE);
         return names;
     }
+
+    // All the code, as a test can reach a changed class through classes that are not tests
+    private List<File> sources() {
+        if (sourcedir == null) {
+            throw new BuildException("changedfiles needs sourcedir to be set to the directory holding all the"
+                    + " .cls and .trigger files, not just the tests");
+        }
+        List<File> sources = new ArrayList<File>();
+        FileSet fs = new FileSet();
+        fs.setProject(project);
+        fs.setDir(sourcedir);
+        fs.setIncludes("**/*.cls,**/*.trigger");
+        for (String path : fs.getDirectoryScanner().getIncludedFiles()) {
+            sources.add(new File(sourcedir, path));
+        }
+        return sources;
+    }
+
+    private List<String> readChangedFiles() {
+        List<String> paths = new ArrayList<String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(changedfiles), "UTF8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().length() > 0) {
+                        paths.add(line.trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to read changed files " + changedfiles, e);
+        }
+        return paths;
+    }
 }
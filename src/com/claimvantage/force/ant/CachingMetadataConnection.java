@@ -0,0 +1,82 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.ws.ConnectionException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * MetadataConnection that remembers the detailed result of each completed deploy,
+ * so that the task and its superclass share one deserialized DeployResult rather
+ * than each pulling the full DeployDetails payload from the server again.
+ * <p>
+ * Results are only cached once the deploy is done as until then they can still change.
+ * Listeners are told about every result that is fetched from the server so that they
+ * can follow the progress of a deploy as it is being polled.
+ */
+public class CachingMetadataConnection extends ForwardingMetadataConnection {
+
+    private Map<String, DeployResult> completedResults = new HashMap<String, DeployResult>();
+    private int avoidedCalls;
+    private List<DeployStatusListener> listeners = new ArrayList<DeployStatusListener>();
+    private boolean notifying;
+
+    public CachingMetadataConnection(MetadataConnection delegate) throws ConnectionException {
+        super(delegate);
+    }
+
+    /**
+     * Returns the connection itself if it already caches, otherwise wraps it.
+     */
+    public static CachingMetadataConnection wrap(MetadataConnection connection) throws ConnectionException {
+        if (connection instanceof CachingMetadataConnection) {
+            return (CachingMetadataConnection) connection;
+        }
+        return new CachingMetadataConnection(connection);
+    }
+
+    public DeployResult checkDeployStatus(String asyncProcessId, boolean includeDetails) throws ConnectionException {
+        // A cached result always has details so can also answer a request without them
+        DeployResult result = completedResults.get(asyncProcessId);
+        if (result != null) {
+            avoidedCalls++;
+            return result;
+        }
+        result = delegate.checkDeployStatus(asyncProcessId, includeDetails);
+        if (includeDetails && result.isDone()) {
+            completedResults.put(asyncProcessId, result);
+        }
+        notifyListeners(result);
+        return result;
+    }
+
+    public void addListener(DeployStatusListener listener) {
+        listeners.add(listener);
+    }
+
+    // Listeners may check the status themselves so don't notify them about their own calls
+    private void notifyListeners(DeployResult result) throws ConnectionException {
+        if (notifying) {
+            return;
+        }
+        notifying = true;
+        try {
+            for (DeployStatusListener listener : listeners) {
+                listener.deployStatusChecked(this, result);
+            }
+        } finally {
+            notifying = false;
+        }
+    }
+
+    /**
+     * The number of checkDeployStatus calls that were answered from the cache.
+     */
+    public int getAvoidedCalls() {
+        return avoidedCalls;
+    }
+}
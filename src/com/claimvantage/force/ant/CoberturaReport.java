@@ -0,0 +1,185 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.CodeCoverageResult;
+import com.sforce.soap.metadata.CodeLocation;
+import com.sforce.soap.metadata.RunTestsResult;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.DOMElementWriter;
+import org.apache.tools.ant.util.StringUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Generate Cobertura format XML coverage output for an Apex test run so that CI coverage
+ * plugins can show per line coverage.
+ * <p>
+ * The API reports the number of locations and the lines not covered, plus the method, DML,
+ * SOQL and SOSL locations with the number of times each was executed. So the line rates are
+ * exact but the covered lines listed are only the ones the API happens to report.
+ * <p>
+ * The file is streamed one class at a time and each class's lines are held as a sorted
+ * long[] of line and hit count pairs, so memory use depends on the largest class
+ * rather than on the number of classes.
+ */
+public class CoberturaReport {
+
+    private static final String FILE_NAME = "coverage.xml";
+    private static final String INDENT = "  ";
+    private static final String LINE_SEP = StringUtils.LINE_SEP;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CLASSES = "classes";
+    private static final String TRIGGERS = "triggers";
+
+    private File toDir;
+    private Writer writer;
+    private DOMElementWriter encoder = new DOMElementWriter();
+
+    public CoberturaReport(File toDir) {
+        this.toDir = toDir;
+    }
+
+    public void report(RunTestsResult results) {
+        CodeCoverageResult[] coverages = results.getCodeCoverage() != null
+                ? results.getCodeCoverage()
+                : new CodeCoverageResult[0];
+
+        // First pass for the totals needed by the outer elements
+        int[] classTotals = new int[2];
+        int[] triggerTotals = new int[2];
+        for (CodeCoverageResult coverage : coverages) {
+            int[] totals = isTrigger(coverage) ? triggerTotals : classTotals;
+            totals[0] += coverage.getNumLocations() - coverage.getNumLocationsNotCovered();
+            totals[1] += coverage.getNumLocations();
+        }
+
+        if (!toDir.exists() && !toDir.mkdirs()) {
+            throw new RuntimeException("Failed to create directory '" + toDir + "'");
+        }
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(toDir, FILE_NAME)), "UTF8"), BUFFER_SIZE);
+            try {
+                int covered = classTotals[0] + triggerTotals[0];
+                int valid = classTotals[1] + triggerTotals[1];
+                writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>" + LINE_SEP);
+                writer.write("<!DOCTYPE coverage SYSTEM \"http://cobertura.sourceforge.net/xml/coverage-04.dtd\">"
+                        + LINE_SEP);
+                writer.write("<coverage line-rate=\"" + rate(covered, valid) + "\" branch-rate=\"0.0\""
+                        + " lines-covered=\"" + covered + "\" lines-valid=\"" + valid + "\""
+                        + " branches-covered=\"0\" branches-valid=\"0\" complexity=\"0\" version=\"1.9\""
+                        + " timestamp=\"" + System.currentTimeMillis() + "\">" + LINE_SEP);
+                writer.write(INDENT + "<sources />" + LINE_SEP);
+                writer.write(INDENT + "<packages>" + LINE_SEP);
+                writePackage(CLASSES, classTotals, coverages, false);
+                writePackage(TRIGGERS, triggerTotals, coverages, true);
+                writer.write(INDENT + "</packages>" + LINE_SEP);
+                writer.write("</coverage>" + LINE_SEP);
+            } finally {
+                writer.flush();
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException exc) {
+            throw new BuildException("Unable to write coverage file", exc);
+        }
+    }
+
+    private void writePackage(String name, int[] totals, CodeCoverageResult[] coverages, boolean triggers)
+            throws IOException {
+        String indent = INDENT + INDENT;
+        writer.write(indent + "<package name=\"" + name + "\" line-rate=\"" + rate(totals[0], totals[1])
+                + "\" branch-rate=\"0.0\" complexity=\"0\">" + LINE_SEP);
+        writer.write(indent + INDENT + "<classes>" + LINE_SEP);
+        for (CodeCoverageResult coverage : coverages) {
+            if (isTrigger(coverage) == triggers) {
+                writeClass(coverage, triggers);
+            }
+        }
+        writer.write(indent + INDENT + "</classes>" + LINE_SEP);
+        writer.write(indent + "</package>" + LINE_SEP);
+    }
+
+    private void writeClass(CodeCoverageResult coverage, boolean trigger) throws IOException {
+        String indent = INDENT + INDENT + INDENT + INDENT;
+        String namespace = coverage.getNamespace();
+        String qualifiedName = (namespace != null && namespace.length() > 0 ? namespace + "." : "")
+                + coverage.getName();
+        String fileName = trigger
+                ? TRIGGERS + "/" + coverage.getName() + ".trigger"
+                : CLASSES + "/" + coverage.getName() + ".cls";
+        int total = coverage.getNumLocations();
+        writer.write(indent + "<class name=\"" + encoder.encodeAttributeValue(qualifiedName) + "\""
+                + " filename=\"" + encoder.encodeAttributeValue(fileName) + "\""
+                + " line-rate=\"" + rate(total - coverage.getNumLocationsNotCovered(), total) + "\""
+                + " branch-rate=\"0.0\" complexity=\"0\">" + LINE_SEP);
+        writer.write(indent + INDENT + "<methods />" + LINE_SEP);
+        long[] lines = lines(coverage);
+        if (lines.length == 0) {
+            writer.write(indent + INDENT + "<lines />" + LINE_SEP);
+        } else {
+            writer.write(indent + INDENT + "<lines>" + LINE_SEP);
+            int previous = -1;
+            for (long pair : lines) {
+                int line = (int) (pair >>> 32);
+                // Sorted so the lowest hit count for a line comes first and a not covered line wins
+                if (line != previous) {
+                    writer.write(indent + INDENT + INDENT + "<line number=\"" + line + "\""
+                            + " hits=\"" + (int) pair + "\" branch=\"false\" />" + LINE_SEP);
+                    previous = line;
+                }
+            }
+            writer.write(indent + INDENT + "</lines>" + LINE_SEP);
+        }
+        writer.write(indent + "</class>" + LINE_SEP);
+    }
+
+    // Line in the high int and hit count in the low int so that sorting orders by line then hits
+    private static long[] lines(CodeCoverageResult coverage) {
+        CodeLocation[][] covered = {
+                coverage.getMethodInfo(),
+                coverage.getDmlInfo(),
+                coverage.getSoqlInfo(),
+                coverage.getSoslInfo()
+        };
+        CodeLocation[] notCovered = coverage.getLocationsNotCovered();
+        int size = length(notCovered);
+        for (CodeLocation[] locations : covered) {
+            size += length(locations);
+        }
+        long[] lines = new long[size];
+        int i = 0;
+        if (notCovered != null) {
+            for (CodeLocation location : notCovered) {
+                lines[i++] = (long) location.getLine() << 32;
+            }
+        }
+        for (CodeLocation[] locations : covered) {
+            if (locations != null) {
+                for (CodeLocation location : locations) {
+                    // The real count, a location that was never executed is reported with zero
+                    lines[i++] = ((long) location.getLine() << 32) | Math.max(0, location.getNumExecutions());
+                }
+            }
+        }
+        Arrays.sort(lines);
+        return lines;
+    }
+
+    private static int length(CodeLocation[] locations) {
+        return locations != null ? locations.length : 0;
+    }
+
+    private static boolean isTrigger(CodeCoverageResult coverage) {
+        return "Trigger".equalsIgnoreCase(coverage.getType());
+    }
+
+    private static String rate(int covered, int total) {
+        return String.valueOf(total > 0 ? (double) covered / total : 1.0d);
+    }
+}
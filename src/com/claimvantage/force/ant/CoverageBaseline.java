@@ -0,0 +1,149 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.CodeCoverageResult;
+import com.sforce.soap.metadata.RunTestFailure;
+import com.sforce.soap.metadata.RunTestsResult;
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The covered and total locations of each Apex class and trigger from an earlier run,
+ * used to find the ones whose coverage has dropped.
+ * <p>
+ * The baseline is a tab separated text file with one line per class. It is loaded into a
+ * hash map so each class of the current run is compared with a single lookup.
+ */
+public class CoverageBaseline {
+
+    public static final String REGRESSION_TYPE = "CoverageRegression";
+    public static final String REGRESSION_METHOD_NAME = "coverage";
+
+    private static final String HEADER = "# apex coverage baseline v1";
+    private static final String SEPARATOR = "\t";
+
+    private File baselineFile;
+
+    public CoverageBaseline(File baselineFile) {
+        this.baselineFile = baselineFile;
+    }
+
+    /**
+     * One failure per class or trigger whose percentage covered is lower than in the baseline.
+     * Classes not in the baseline or not in the run are ignored, and nothing is returned when there is no baseline.
+     */
+    public List<RunTestFailure> regressions(RunTestsResult rtr) {
+        List<RunTestFailure> regressions = new ArrayList<RunTestFailure>();
+        CodeCoverageResult[] coverages = rtr.getCodeCoverage();
+        if (coverages == null || !baselineFile.isFile()) {
+            return regressions;
+        }
+        Map<String, int[]> baseline = load();
+        for (CodeCoverageResult coverage : coverages) {
+            int[] before = baseline.get(key(coverage));
+            if (before == null) {
+                continue;
+            }
+            int total = coverage.getNumLocations();
+            int covered = total - coverage.getNumLocationsNotCovered();
+            // covered / total < before covered / before total without rounding
+            if (total > 0 && before[1] > 0 && (long) covered * before[1] < (long) before[0] * total) {
+                RunTestFailure failure = new RunTestFailure();
+                failure.setNamespace(coverage.getNamespace());
+                failure.setName(coverage.getName());
+                failure.setMethodName(REGRESSION_METHOD_NAME);
+                failure.setType(REGRESSION_TYPE);
+                failure.setMessage(coverage.getType() + " coverage dropped from "
+                        + percentage(before[0], before[1]) + " to " + percentage(covered, total));
+                regressions.add(failure);
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Update the baseline with the coverage of this run. Classes and triggers that were not
+     * in the run keep their earlier values, so a run of only some tests does not lose them.
+     */
+    public void save(RunTestsResult rtr) {
+        Map<String, int[]> baseline = new TreeMap<String, int[]>();
+        if (baselineFile.isFile()) {
+            baseline.putAll(load());
+        }
+        if (rtr.getCodeCoverage() != null) {
+            for (CodeCoverageResult coverage : rtr.getCodeCoverage()) {
+                int total = coverage.getNumLocations();
+                baseline.put(key(coverage), new int[] {total - coverage.getNumLocationsNotCovered(), total});
+            }
+        }
+        File dir = baselineFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new BuildException("Failed to create directory '" + dir + "'");
+        }
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(baselineFile), "UTF8"));
+            try {
+                writer.write(HEADER + "\n");
+                for (Map.Entry<String, int[]> entry : baseline.entrySet()) {
+                    writer.write(entry.getKey() + SEPARATOR + entry.getValue()[0] + SEPARATOR + entry.getValue()[1] + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to write coverage baseline " + baselineFile, e);
+        }
+    }
+
+    private Map<String, int[]> load() {
+        Map<String, int[]> loaded = new HashMap<String, int[]>((int) Math.min(Integer.MAX_VALUE / 2,
+                baselineFile.length() / 16));
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(baselineFile), "UTF8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    return loaded;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR);
+                    if (fields.length == 4) {
+                        loaded.put(fields[0] + SEPARATOR + fields[1],
+                                new int[] {Integer.parseInt(fields[2]), Integer.parseInt(fields[3])});
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to read coverage baseline " + baselineFile, e);
+        } catch (NumberFormatException e) {
+            throw new BuildException("Unable to read coverage baseline " + baselineFile, e);
+        }
+        return loaded;
+    }
+
+    // Type then qualified name as a class and a trigger can have the same name
+    private static String key(CodeCoverageResult coverage) {
+        String namespace = coverage.getNamespace();
+        return coverage.getType() + SEPARATOR
+                + (namespace != null && namespace.length() > 0 ? namespace + "." : "") + coverage.getName();
+    }
+
+    private static String percentage(int covered, int total) {
+        return (100 * covered) / total + "% (" + covered + "/" + total + ")";
+    }
+}
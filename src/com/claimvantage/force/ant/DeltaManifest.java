@@ -0,0 +1,215 @@
+package com.claimvantage.force.ant;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Content hashes of the files under a deploy root as of the last successful deploy.
+ * <p>
+ * {@link #scan(File)} hashes the current files (in parallel, reusing the previous hash when a
+ * file's size and modification time are unchanged) and returns the paths that were added or
+ * changed. The new hashes only replace the persisted ones when {@link #save()} is called,
+ * which should only happen once the deploy has succeeded.
+ */
+public class DeltaManifest {
+
+    private static final String HEADER = "# deploy manifest v1";
+    private static final String SEPARATOR = "\t";
+
+    private File manifestFile;
+    private int threads;
+    private Map<String, Entry> previous;
+    private Map<String, Entry> current;
+    private int hashed;
+
+    public DeltaManifest(File manifestFile, int threads) {
+        this.manifestFile = manifestFile;
+        this.threads = threads;
+    }
+
+    /**
+     * @return the paths, relative to the root and separated by /, that are new or have different content
+     */
+    public List<String> scan(File root) {
+        previous = load();
+        List<String> paths = DeployZip.paths(root);
+
+        current = new TreeMap<String, Entry>();
+        List<String> toHash = new ArrayList<String>();
+        for (String path : paths) {
+            File file = new File(root, path);
+            Entry entry = previous.get(path);
+            if (entry != null && entry.length == file.length() && entry.lastModified == file.lastModified()) {
+                current.put(path, entry);
+            } else {
+                toHash.add(path);
+            }
+        }
+        hashed = toHash.size();
+        for (Entry entry : hashAll(root, toHash)) {
+            current.put(entry.path, entry);
+        }
+
+        List<String> changed = new ArrayList<String>();
+        for (Entry entry : current.values()) {
+            Entry before = previous.get(entry.path);
+            if (before == null || !before.hash.equals(entry.hash)) {
+                changed.add(entry.path);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * The paths in the manifest that no longer exist, only valid after {@link #scan(File)}.
+     */
+    public List<String> getDeleted() {
+        List<String> deleted = new ArrayList<String>();
+        for (String path : previous.keySet()) {
+            if (!current.containsKey(path)) {
+                deleted.add(path);
+            }
+        }
+        Collections.sort(deleted);
+        return deleted;
+    }
+
+    /**
+     * All the current paths, only valid after {@link #scan(File)}.
+     */
+    public List<String> getPaths() {
+        return new ArrayList<String>(current.keySet());
+    }
+
+    /**
+     * The number of files hashed by the last scan, the rest were unchanged since the manifest was saved.
+     */
+    public int getHashed() {
+        return hashed;
+    }
+
+    /**
+     * Persist the hashes found by the last scan.
+     */
+    public void save() {
+        File dir = manifestFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new BuildException("Failed to create directory '" + dir + "'");
+        }
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(manifestFile), "UTF8"));
+            try {
+                writer.write(HEADER + "\n");
+                for (Entry entry : current.values()) {
+                    writer.write(entry.path + SEPARATOR + entry.length + SEPARATOR + entry.lastModified
+                            + SEPARATOR + entry.hash + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to write deploy manifest " + manifestFile, e);
+        }
+    }
+
+    private List<Entry> hashAll(final File root, List<String> paths) {
+        List<Entry> entries = new ArrayList<Entry>(paths.size());
+        if (paths.isEmpty()) {
+            return entries;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, paths.size())));
+        try {
+            List<Future<Entry>> futures = new ArrayList<Future<Entry>>(paths.size());
+            for (final String path : paths) {
+                futures.add(pool.submit(new Callable<Entry>() {
+                    public Entry call() throws IOException {
+                        return hash(root, path);
+                    }
+                }));
+            }
+            for (Future<Entry> future : futures) {
+                entries.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while hashing files", e);
+        } catch (ExecutionException e) {
+            throw new BuildException("Unable to hash file", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return entries;
+    }
+
+    private static Entry hash(File root, String path) throws IOException {
+        File file = new File(root, path);
+        Entry entry = new Entry();
+        entry.path = path;
+        entry.length = file.length();
+        entry.lastModified = file.lastModified();
+        entry.hash = ContentHash.of(file);
+        return entry;
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> loaded = new HashMap<String, Entry>();
+        if (!manifestFile.isFile()) {
+            return loaded;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifestFile), "UTF8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    return loaded;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR);
+                    if (fields.length == 4) {
+                        Entry entry = new Entry();
+                        entry.path = fields[0];
+                        entry.length = Long.parseLong(fields[1]);
+                        entry.lastModified = Long.parseLong(fields[2]);
+                        entry.hash = fields[3];
+                        loaded.put(entry.path, entry);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // A damaged manifest just means a full deploy
+            loaded.clear();
+        } catch (NumberFormatException e) {
+            loaded.clear();
+        }
+        return loaded;
+    }
+
+    private static class Entry {
+        private String path;
+        private long length;
+        private long lastModified;
+        private String hash;
+    }
+}
@@ -0,0 +1,219 @@
+package com.claimvantage.force.ant;
+
+import org.apache.tools.ant.util.DOMElementWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A deploy package holding just the components whose files have changed, in metadata API format.
+ * <p>
+ * Each changed file brings in the rest of its component: the file and its -meta.xml partner, or
+ * the whole folder for bundles such as aura and lwc. A package.xml listing the components is
+ * generated using the API version of the package.xml in the deploy root.
+ * {@link #add(String)} refuses changes that can't be expressed safely (for example an unknown
+ * folder or the package.xml itself) so that the caller can fall back to a full deploy.
+ */
+public class DeltaPackage {
+
+    private static final String PACKAGE_XML = "package.xml";
+    private static final String META_SUFFIX = "-meta.xml";
+    private static final String DEFAULT_VERSION = "44.0";
+    private static final String DOCUMENTS = "documents";
+    private static final Pattern VERSION = Pattern.compile("<version>\\s*([^<\\s]+)\\s*</version>");
+
+    private static final Map<String, String> TYPES = new HashMap<String, String>();
+    private static final Set<String> BUNDLES = new HashSet<String>();
+    private static final Set<String> FOLDERED = new HashSet<String>();
+    static {
+        TYPES.put("applications", "CustomApplication");
+        TYPES.put("approvalProcesses", "ApprovalProcess");
+        TYPES.put("aura", "AuraDefinitionBundle");
+        TYPES.put("classes", "ApexClass");
+        TYPES.put("components", "ApexComponent");
+        TYPES.put("customMetadata", "CustomMetadata");
+        TYPES.put("customPermissions", "CustomPermission");
+        TYPES.put("dashboards", "Dashboard");
+        TYPES.put(DOCUMENTS, "Document");
+        TYPES.put("email", "EmailTemplate");
+        TYPES.put("flexipages", "FlexiPage");
+        TYPES.put("flows", "Flow");
+        TYPES.put("globalValueSets", "GlobalValueSet");
+        TYPES.put("labels", "CustomLabels");
+        TYPES.put("layouts", "Layout");
+        TYPES.put("lwc", "LightningComponentBundle");
+        TYPES.put("objects", "CustomObject");
+        TYPES.put("pages", "ApexPage");
+        TYPES.put("permissionsets", "PermissionSet");
+        TYPES.put("profiles", "Profile");
+        TYPES.put("quickActions", "QuickAction");
+        TYPES.put("remoteSiteSettings", "RemoteSiteSetting");
+        TYPES.put("reports", "Report");
+        TYPES.put("staticresources", "StaticResource");
+        TYPES.put("tabs", "CustomTab");
+        TYPES.put("triggers", "ApexTrigger");
+        TYPES.put("workflows", "Workflow");
+        BUNDLES.add("aura");
+        BUNDLES.add("lwc");
+        FOLDERED.add("dashboards");
+        FOLDERED.add(DOCUMENTS);
+        FOLDERED.add("email");
+        FOLDERED.add("reports");
+    }
+
+    private File root;
+    private Set<String> allPaths;
+    private Set<String> paths = new TreeSet<String>();
+    private Map<String, Set<String>> members = new TreeMap<String, Set<String>>();
+
+    /**
+     * @param allPaths every path under the root, relative and separated by /
+     */
+    public DeltaPackage(File root, Collection<String> allPaths) {
+        this.root = root;
+        this.allPaths = new HashSet<String>(allPaths);
+    }
+
+    /**
+     * Add the component a changed file belongs to.
+     * @return false if the change can't be deployed as part of a delta package
+     */
+    public boolean add(String path) {
+        String[] parts = path.split("/");
+        String type = TYPES.get(parts[0]);
+        if (type == null || parts.length < 2) {
+            return false;
+        }
+        if (BUNDLES.contains(parts[0])) {
+            String bundle = parts[0] + "/" + parts[1] + "/";
+            for (String p : allPaths) {
+                if (p.startsWith(bundle)) {
+                    paths.add(p);
+                }
+            }
+            member(type, parts[1]);
+            return true;
+        }
+        if (parts.length == 2) {
+            addWithPartner(path);
+            member(type, componentName(parts[1]));
+            return true;
+        }
+        if (parts.length == 3 && FOLDERED.contains(parts[0])) {
+            addWithPartner(path);
+            // A document's name keeps its extension, logo.png is the Document Folder/logo.png
+            String name = DOCUMENTS.equals(parts[0]) ? stripMeta(parts[2]) : componentName(parts[2]);
+            member(type, parts[1] + "/" + name);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The files to put in the package, not including the package.xml.
+     */
+    public Set<String> getPaths() {
+        return paths;
+    }
+
+    public int getComponentCount() {
+        int count = 0;
+        for (Set<String> names : members.values()) {
+            count += names.size();
+        }
+        return count;
+    }
+
+    public byte[] packageXml() {
+        DOMElementWriter encoder = new DOMElementWriter();
+        StringBuilder sb = new StringBuilder();
+        sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        sb.append("<Package xmlns=\"http://soap.sforce.com/2006/04/metadata\">\n");
+        for (Map.Entry<String, Set<String>> entry : members.entrySet()) {
+            sb.append("    <types>\n");
+            for (String name : entry.getValue()) {
+                sb.append("        <members>").append(encoder.encode(name)).append("</members>\n");
+            }
+            sb.append("        <name>").append(entry.getKey()).append("</name>\n");
+            sb.append("    </types>\n");
+        }
+        sb.append("    <version>").append(apiVersion()).append("</version>\n");
+        sb.append("</Package>\n");
+        try {
+            return sb.toString().getBytes("UTF8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void addWithPartner(String path) {
+        paths.add(path);
+        String partner = path.endsWith(META_SUFFIX)
+                ? path.substring(0, path.length() - META_SUFFIX.length())
+                : path + META_SUFFIX;
+        if (allPaths.contains(partner)) {
+            paths.add(partner);
+        }
+    }
+
+    private void member(String type, String name) {
+        Set<String> names = members.get(type);
+        if (names == null) {
+            names = new TreeSet<String>();
+            members.put(type, names);
+        }
+        names.add(name);
+    }
+
+    // Foo.cls, Foo.cls-meta.xml and a folder's Foo-meta.xml all give Foo
+    private static String componentName(String fileName) {
+        String name = stripMeta(fileName);
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static String stripMeta(String fileName) {
+        return fileName.endsWith(META_SUFFIX)
+                ? fileName.substring(0, fileName.length() - META_SUFFIX.length())
+                : fileName;
+    }
+
+    private String apiVersion() {
+        File packageXml = new File(root, PACKAGE_XML);
+        if (packageXml.isFile()) {
+            try {
+                StringBuilder content = new StringBuilder();
+                Reader reader = new InputStreamReader(new FileInputStream(packageXml), "UTF8");
+                try {
+                    char[] buffer = new char[4096];
+                    int n;
+                    while ((n = reader.read(buffer)) != -1) {
+                        content.append(buffer, 0, n);
+                    }
+                } finally {
+                    reader.close();
+                }
+                Matcher matcher = VERSION.matcher(content);
+                if (matcher.find()) {
+                    return matcher.group(1);
+                }
+            } catch (IOException e) {
+                // Use the default
+            }
+        }
+        return DEFAULT_VERSION;
+    }
+}
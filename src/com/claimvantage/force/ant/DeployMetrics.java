@@ -0,0 +1,269 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.RunTestFailure;
+import com.sforce.soap.metadata.RunTestSuccess;
+import com.sforce.soap.metadata.RunTestsResult;
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Where the time of a deploy went, for comparing builds.
+ * <p>
+ * The task's own phases (scanning, zipping, uploading, waiting, report writing) are timed
+ * here. The server side phases come from the DeployResult: server_queued is created to started,
+ * server_tests is the reported total test time and server_components is the rest of started to completed.
+ * When there are several results (shards) the server phases are the longest of any of them
+ * and the counts are added up. The metrics are written as a Prometheus textfile collector
+ * file and as JSON.
+ */
+public class DeployMetrics {
+
+    public static final String PROMETHEUS_FILE_NAME = "deploy-metrics.prom";
+    public static final String JSON_FILE_NAME = "deploy-metrics.json";
+
+    private static final String PREFIX = "apex_deploy_";
+    private static final int SLOWEST_CLASSES = 10;
+    private static final double MS_PER_SECOND = 1000.0d;
+
+    private Map<String, Long> phases = new LinkedHashMap<String, Long>();
+    private Map<String, Double> classTimes = new HashMap<String, Double>();
+    private boolean hasResult;
+    private boolean success = true;
+    private int componentsTotal;
+    private int componentsDeployed;
+    private int componentErrors;
+    private int testsTotal;
+    private int testsCompleted;
+    private int testErrors;
+
+    /**
+     * Add the time from start until now to the named phase.
+     */
+    public synchronized void phase(String name, long startMillis) {
+        add(name, System.currentTimeMillis() - startMillis);
+    }
+
+    /**
+     * Add the server side phases, counts and test times of a completed deploy.
+     */
+    public synchronized void result(DeployResult result) {
+        hasResult = true;
+        success &= result.isSuccess();
+        componentsTotal += result.getNumberComponentsTotal();
+        componentsDeployed += result.getNumberComponentsDeployed();
+        componentErrors += result.getNumberComponentErrors();
+        testsTotal += result.getNumberTestsTotal();
+        testsCompleted += result.getNumberTestsCompleted();
+        testErrors += result.getNumberTestErrors();
+
+        long tests = 0;
+        if (result.getDetails() != null && result.getDetails().getRunTestResult() != null) {
+            RunTestsResult rtr = result.getDetails().getRunTestResult();
+            tests = (long) rtr.getTotalTime();
+            addClassTimes(rtr);
+        }
+        longest("server_queued", between(result.getCreatedDate(), result.getStartDate()));
+        longest("server_components", Math.max(0, between(result.getStartDate(), result.getCompletedDate()) - tests));
+        longest("server_tests", tests);
+    }
+
+    public synchronized void writePrometheus(File file) {
+        File tmp = tmpFile(file);
+        Writer writer = createWriter(tmp);
+        try {
+            try {
+                writer.write("# HELP " + PREFIX + "phase_seconds Time spent in each phase of the deploy.\n");
+                writer.write("# TYPE " + PREFIX + "phase_seconds gauge\n");
+                for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                    writer.write(PREFIX + "phase_seconds{phase=\"" + label(phase.getKey()) + "\"} "
+                            + number(phase.getValue() / MS_PER_SECOND) + "\n");
+                }
+                if (hasResult) {
+                    writer.write("# HELP " + PREFIX + "success Whether the deploy succeeded.\n");
+                    writer.write("# TYPE " + PREFIX + "success gauge\n");
+                    writer.write(PREFIX + "success " + (success ? 1 : 0) + "\n");
+                    writer.write("# HELP " + PREFIX + "components Number of components by state.\n");
+                    writer.write("# TYPE " + PREFIX + "components gauge\n");
+                    writer.write(PREFIX + "components{state=\"total\"} " + componentsTotal + "\n");
+                    writer.write(PREFIX + "components{state=\"deployed\"} " + componentsDeployed + "\n");
+                    writer.write(PREFIX + "components{state=\"error\"} " + componentErrors + "\n");
+                    writer.write("# HELP " + PREFIX + "tests Number of tests by state.\n");
+                    writer.write("# TYPE " + PREFIX + "tests gauge\n");
+                    writer.write(PREFIX + "tests{state=\"total\"} " + testsTotal + "\n");
+                    writer.write(PREFIX + "tests{state=\"completed\"} " + testsCompleted + "\n");
+                    writer.write(PREFIX + "tests{state=\"error\"} " + testErrors + "\n");
+                }
+                List<Map.Entry<String, Double>> slowest = slowestClasses();
+                if (!slowest.isEmpty()) {
+                    writer.write("# HELP " + PREFIX + "test_class_seconds Total test time of the slowest test classes.\n");
+                    writer.write("# TYPE " + PREFIX + "test_class_seconds gauge\n");
+                    for (Map.Entry<String, Double> entry : slowest) {
+                        writer.write(PREFIX + "test_class_seconds{class=\"" + label(entry.getKey()) + "\"} "
+                                + number(entry.getValue() / MS_PER_SECOND) + "\n");
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+            replace(tmp, file);
+        } catch (IOException e) {
+            tmp.delete();
+            throw new BuildException("Unable to write " + file, e);
+        }
+    }
+
+    public synchronized void writeJson(File file) {
+        File tmp = tmpFile(file);
+        Writer writer = createWriter(tmp);
+        try {
+            try {
+                writer.write("{\n");
+                writer.write("  \"phases\": {");
+                String separator = "\n";
+                for (Map.Entry<String, Long> phase : phases.entrySet()) {
+                    writer.write(separator + "    " + string(phase.getKey()) + ": " + number(phase.getValue() / MS_PER_SECOND));
+                    separator = ",\n";
+                }
+                writer.write("\n  }");
+                if (hasResult) {
+                    writer.write(",\n  \"success\": " + success);
+                    writer.write(",\n  \"components\": {\"total\": " + componentsTotal
+                            + ", \"deployed\": " + componentsDeployed + ", \"error\": " + componentErrors + "}");
+                    writer.write(",\n  \"tests\": {\"total\": " + testsTotal
+                            + ", \"completed\": " + testsCompleted + ", \"error\": " + testErrors + "}");
+                }
+                writer.write(",\n  \"slowestTestClasses\": [");
+                separator = "\n";
+                for (Map.Entry<String, Double> entry : slowestClasses()) {
+                    writer.write(separator + "    {\"name\": " + string(entry.getKey())
+                            + ", \"seconds\": " + number(entry.getValue() / MS_PER_SECOND) + "}");
+                    separator = ",\n";
+                }
+                writer.write("\n  ]\n}\n");
+            } finally {
+                writer.close();
+            }
+            replace(tmp, file);
+        } catch (IOException e) {
+            tmp.delete();
+            throw new BuildException("Unable to write " + file, e);
+        }
+    }
+
+    private void add(String name, long millis) {
+        Long current = phases.get(name);
+        phases.put(name, (current != null ? current : 0L) + millis);
+    }
+
+    private void longest(String name, long millis) {
+        Long current = phases.get(name);
+        if (current == null || millis > current) {
+            phases.put(name, millis);
+        }
+    }
+
+    private void addClassTimes(RunTestsResult rtr) {
+        if (rtr.getSuccesses() != null) {
+            for (RunTestSuccess success : rtr.getSuccesses()) {
+                addClassTime(success.getNamespace(), success.getName(), success.getTime());
+            }
+        }
+        if (rtr.getFailures() != null) {
+            for (RunTestFailure failure : rtr.getFailures()) {
+                addClassTime(failure.getNamespace(), failure.getName(), failure.getTime());
+            }
+        }
+    }
+
+    private void addClassTime(String namespace, String name, double time) {
+        String key = (namespace != null ? namespace + "." : "") + name;
+        Double current = classTimes.get(key);
+        classTimes.put(key, (current != null ? current : 0.0d) + time);
+    }
+
+    private List<Map.Entry<String, Double>> slowestClasses() {
+        List<Map.Entry<String, Double>> entries = new ArrayList<Map.Entry<String, Double>>(classTimes.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Double>>() {
+            public int compare(Map.Entry<String, Double> a, Map.Entry<String, Double> b) {
+                int c = b.getValue().compareTo(a.getValue());
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return entries.subList(0, Math.min(SLOWEST_CLASSES, entries.size()));
+    }
+
+    private static long between(Calendar from, Calendar to) {
+        if (from == null || to == null) {
+            return 0;
+        }
+        return Math.max(0, to.getTimeInMillis() - from.getTimeInMillis());
+    }
+
+    // Written next to the file and then moved over it so that a collector never reads half a file
+    private static File tmpFile(File file) {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static void replace(File tmp, File file) throws IOException {
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static Writer createWriter(File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new BuildException("Failed to create directory '" + dir + "'");
+        }
+        try {
+            return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF8"));
+        } catch (IOException e) {
+            throw new BuildException("Unable to write " + file, e);
+        }
+    }
+
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String label(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static String string(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
@@ -0,0 +1,508 @@
+package com.claimvantage.force.ant;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Builds deploy zips in a temporary file, compressing the entries in parallel and reusing
+ * compressed entries from earlier runs.
+ * <p>
+ * Each file is deflated once into a cache directory under the SHA-1 of its content. Later
+ * zips copy the deflated bytes straight into the archive, so an unchanged file is only read
+ * to hash it, and not even that when its size and modification time match the cache's index.
+ * The entries are written in order as they become ready, with the
+ * zip headers written here because ZipOutputStream can't take already compressed data.
+ * Packaging the whole deploy root also removes cache files that have not been used for
+ * {@link #PRUNE_AFTER_MILLIS}. A cache file's modification time is refreshed (at most daily) when it is used,
+ * so entries another build sharing the directory still uses, and its temporary files, are left alone.
+ */
+public class DeployPackager {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String PACKAGE_XML = "package.xml";
+    private static final String INDEX_FILE_NAME = "index";
+    private static final String HEADER = "# deploy zip cache v1";
+    private static final String SEPARATOR = "\t";
+    private static final int MAX_ENTRIES = 0xFFFF;
+    private static final long MAX_OFFSET = 0xFFFFFFFFL;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+    private static final Pattern CACHE_FILE_NAME = Pattern.compile("[0-9a-f]{40}");
+
+    /**
+     * How long a cache file has to have gone unused before it is removed.
+     */
+    public static final long PRUNE_AFTER_MILLIS = 7 * DAY_MILLIS;
+
+    private File cacheDir;
+    private int threads;
+    private Set<String> used = new HashSet<String>();
+    private AtomicInteger reused = new AtomicInteger();
+    private AtomicInteger deflated = new AtomicInteger();
+
+    public DeployPackager(File cacheDir, int threads) {
+        this.cacheDir = cacheDir;
+        this.threads = threads;
+    }
+
+    /**
+     * Zip everything under the root.
+     * @return a temporary file that the caller should delete
+     */
+    public File pack(File root) {
+        if (root == null || !root.isDirectory()) {
+            throw new BuildException("deployRoot '" + root + "' is not a directory");
+        }
+        File zip = pack(root, DeployZip.paths(root), null, true);
+        prune();
+        return zip;
+    }
+
+    /**
+     * Zip the given files under the root.
+     * @param paths the files to include, relative to the root and separated by /
+     * @param packageXml the content of the package.xml to include in place of the root's one, or null
+     * @return a temporary file that the caller should delete
+     */
+    public File pack(File root, Collection<String> paths, byte[] packageXml) {
+        return pack(root, paths, packageXml, false);
+    }
+
+    // When all the files are packed the index only keeps them, otherwise the other entries are kept
+    private File pack(final File root, Collection<String> paths, byte[] packageXml, boolean all) {
+        if (root == null || !root.isDirectory()) {
+            throw new BuildException("deployRoot '" + root + "' is not a directory");
+        }
+        if (!cacheDir.exists() && !cacheDir.mkdirs()) {
+            throw new BuildException("Failed to create directory '" + cacheDir + "'");
+        }
+        used.clear();
+        reused.set(0);
+        deflated.set(0);
+        final Map<String, Entry> previous = load();
+        Map<String, Entry> index = new HashMap<String, Entry>();
+        if (!all) {
+            index.putAll(previous);
+        }
+        File zipFile = null;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, paths.size())));
+        try {
+            zipFile = File.createTempFile("deploy", ".zip");
+            List<Future<Entry>> futures = new ArrayList<Future<Entry>>(paths.size());
+            for (final String path : paths) {
+                futures.add(pool.submit(new Callable<Entry>() {
+                    public Entry call() throws IOException {
+                        return prepare(new File(root, path), path, previous);
+                    }
+                }));
+            }
+            List<Entry> entries = new ArrayList<Entry>(paths.size() + 1);
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(zipFile), BUFFER_SIZE);
+            try {
+                long offset = 0;
+                for (Future<Entry> future : futures) {
+                    Entry entry = future.get();
+                    used.add(entry.cacheFile.getName());
+                    index.put(entry.path, entry);
+                    entry.offset = offset;
+                    offset += writeEntry(out, entry);
+                    entries.add(entry);
+                }
+                if (packageXml != null) {
+                    Entry entry = prepare(packageXml, PACKAGE_XML);
+                    entry.offset = offset;
+                    offset += writeEntry(out, entry);
+                    entries.add(entry);
+                }
+                writeCentralDirectory(out, entries, offset);
+            } finally {
+                out.close();
+            }
+            save(index);
+            touch();
+            return zipFile;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteQuietly(zipFile);
+            throw new BuildException("Interrupted while zipping " + root, e);
+        } catch (ExecutionException e) {
+            deleteQuietly(zipFile);
+            throw new BuildException("Unable to zip " + root, e.getCause());
+        } catch (IOException e) {
+            deleteQuietly(zipFile);
+            throw new BuildException("Unable to zip " + root, e);
+        } catch (RuntimeException e) {
+            deleteQuietly(zipFile);
+            throw e;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * The number of files the last pack took from the cache.
+     */
+    public int getReused() {
+        return reused.get();
+    }
+
+    /**
+     * The number of files the last pack had to compress.
+     */
+    public int getDeflated() {
+        return deflated.get();
+    }
+
+    /**
+     * Read a zip into a single array of exactly the right size, as MetadataConnection.deploy needs the bytes.
+     */
+    public static byte[] read(File zip) {
+        long length = zip.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new BuildException("Zip " + zip + " is too large to deploy");
+        }
+        byte[] bytes = new byte[(int) length];
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(zip));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to read " + zip, e);
+        }
+        return bytes;
+    }
+
+    // Hash the file and make sure its deflated content is in the cache
+    private Entry prepare(File file, String name, Map<String, Entry> previous) throws IOException {
+        Entry entry = new Entry(name, file.lastModified());
+        entry.path = file.getAbsolutePath();
+        Entry known = previous.get(entry.path);
+        if (known != null && known.size == file.length() && known.lastModified == entry.lastModified) {
+            File cacheFile = new File(cacheDir, known.hash);
+            if (cacheFile.isFile()) {
+                entry.size = known.size;
+                entry.crc = known.crc;
+                entry.hash = known.hash;
+                entry.cacheFile = cacheFile;
+                entry.compressedSize = cacheFile.length();
+                reused.incrementAndGet();
+                return entry;
+            }
+        }
+        MessageDigest digest = ContentHash.newDigest();
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+                crc.update(buffer, 0, n);
+                entry.size += n;
+            }
+        } finally {
+            in.close();
+        }
+        entry.crc = crc.getValue();
+        entry.hash = ContentHash.hex(digest.digest());
+        entry.cacheFile = new File(cacheDir, entry.hash);
+        if (entry.cacheFile.isFile()) {
+            reused.incrementAndGet();
+        } else {
+            deflate(file, entry.cacheFile, buffer);
+            deflated.incrementAndGet();
+        }
+        entry.compressedSize = entry.cacheFile.length();
+        return entry;
+    }
+
+    private Entry prepare(byte[] content, String name) throws IOException {
+        Entry entry = new Entry(name, System.currentTimeMillis());
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        entry.crc = crc.getValue();
+        entry.size = content.length;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+            out.write(content);
+            out.close();
+        } finally {
+            deflater.end();
+        }
+        entry.data = bytes.toByteArray();
+        entry.compressedSize = entry.data.length;
+        return entry;
+    }
+
+    // Written to a temporary file first so other threads and builds never see a partial entry
+    private void deflate(File file, File cacheFile, byte[] buffer) throws IOException {
+        File tmp = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                OutputStream out = new DeflaterOutputStream(new FileOutputStream(tmp), deflater, BUFFER_SIZE);
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    out.close();
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            deflater.end();
+        }
+        if (!tmp.renameTo(cacheFile)) {
+            // Another thread got there first
+            tmp.delete();
+            if (!cacheFile.isFile()) {
+                throw new IOException("Unable to rename " + tmp + " to " + cacheFile);
+            }
+        }
+    }
+
+    // Only this class's own hash named files; the index and .tmp files are never matched
+    private void prune() {
+        File[] files = cacheDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis() - PRUNE_AFTER_MILLIS;
+        for (File file : files) {
+            String name = file.getName();
+            if (CACHE_FILE_NAME.matcher(name).matches() && !used.contains(name) && file.lastModified() < cutoff) {
+                file.delete();
+            }
+        }
+    }
+
+    private void touch() {
+        long now = System.currentTimeMillis();
+        for (String name : used) {
+            File file = new File(cacheDir, name);
+            if (file.lastModified() < now - DAY_MILLIS) {
+                file.setLastModified(now);
+            }
+        }
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> loaded = new HashMap<String, Entry>();
+        File indexFile = new File(cacheDir, INDEX_FILE_NAME);
+        if (!indexFile.isFile()) {
+            return loaded;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    return loaded;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR);
+                    if (fields.length == 5) {
+                        Entry entry = new Entry(fields[0], 0);
+                        entry.path = fields[0];
+                        entry.size = Long.parseLong(fields[1]);
+                        entry.lastModified = Long.parseLong(fields[2]);
+                        entry.crc = Long.parseLong(fields[3]);
+                        entry.hash = fields[4];
+                        loaded.put(entry.path, entry);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // A damaged index just means files are hashed again
+            loaded.clear();
+        } catch (NumberFormatException e) {
+            loaded.clear();
+        }
+        return loaded;
+    }
+
+    private void save(Map<String, Entry> index) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(new File(cacheDir, INDEX_FILE_NAME)), "UTF8"));
+        try {
+            writer.write(HEADER + "\n");
+            for (Entry entry : index.values()) {
+                writer.write(entry.path + SEPARATOR + entry.size + SEPARATOR + entry.lastModified
+                        + SEPARATOR + entry.crc + SEPARATOR + entry.hash + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Local file header followed by the deflated content
+    private static long writeEntry(OutputStream out, Entry entry) throws IOException {
+        if (entry.offset > MAX_OFFSET || entry.size > MAX_OFFSET) {
+            throw new BuildException("Deploy zip is too large at entry " + entry.name);
+        }
+        writeInt(out, 0x04034b50);
+        writeShort(out, 20);
+        writeShort(out, 0x0800);
+        writeShort(out, 8);
+        writeInt(out, entry.dosTime);
+        writeInt(out, entry.crc);
+        writeInt(out, entry.compressedSize);
+        writeInt(out, entry.size);
+        writeShort(out, entry.nameBytes.length);
+        writeShort(out, 0);
+        out.write(entry.nameBytes);
+        if (entry.data != null) {
+            out.write(entry.data);
+        } else {
+            InputStream in = new FileInputStream(entry.cacheFile);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return 30 + entry.nameBytes.length + entry.compressedSize;
+    }
+
+    private static void writeCentralDirectory(OutputStream out, List<Entry> entries, long offset) throws IOException {
+        if (entries.size() > MAX_ENTRIES || offset > MAX_OFFSET) {
+            throw new BuildException("Deploy zip has too many entries or is too large");
+        }
+        long size = 0;
+        for (Entry entry : entries) {
+            writeInt(out, 0x02014b50);
+            writeShort(out, 20);
+            writeShort(out, 20);
+            writeShort(out, 0x0800);
+            writeShort(out, 8);
+            writeInt(out, entry.dosTime);
+            writeInt(out, entry.crc);
+            writeInt(out, entry.compressedSize);
+            writeInt(out, entry.size);
+            writeShort(out, entry.nameBytes.length);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeInt(out, 0);
+            writeInt(out, entry.offset);
+            out.write(entry.nameBytes);
+            size += 46 + entry.nameBytes.length;
+        }
+        writeInt(out, 0x06054b50);
+        writeShort(out, 0);
+        writeShort(out, 0);
+        writeShort(out, entries.size());
+        writeShort(out, entries.size());
+        writeInt(out, size);
+        writeInt(out, offset);
+        writeShort(out, 0);
+    }
+
+    private static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    private static void writeInt(OutputStream out, long value) throws IOException {
+        out.write((int) (value & 0xff));
+        out.write((int) ((value >>> 8) & 0xff));
+        out.write((int) ((value >>> 16) & 0xff));
+        out.write((int) ((value >>> 24) & 0xff));
+    }
+
+    private static void deleteQuietly(File file) {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private static class Entry {
+        private String name;
+        private byte[] nameBytes;
+        private String path;
+        private String hash;
+        private long lastModified;
+        private long dosTime;
+        private long crc;
+        private long size;
+        private long compressedSize;
+        private long offset;
+        private File cacheFile;
+        private byte[] data;
+
+        private Entry(String name, long lastModified) {
+            this.name = name;
+            try {
+                this.nameBytes = name.getBytes("UTF8");
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+            this.lastModified = lastModified;
+            this.dosTime = dosTime(lastModified);
+        }
+
+        private static long dosTime(long time) {
+            Calendar c = Calendar.getInstance();
+            c.setTimeInMillis(time);
+            int year = c.get(Calendar.YEAR);
+            if (year < 1980) {
+                return (1 << 21) | (1 << 16);
+            }
+            return ((long) (year - 1980) << 25)
+                    | ((c.get(Calendar.MONTH) + 1) << 21)
+                    | (c.get(Calendar.DAY_OF_MONTH) << 16)
+                    | (c.get(Calendar.HOUR_OF_DAY) << 11)
+                    | (c.get(Calendar.MINUTE) << 5)
+                    | (c.get(Calendar.SECOND) >> 1);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.ws.ConnectionException;
+import org.apache.tools.ant.BuildException;
+
+/**
+ * Waits for a deploy to complete using lightweight checkDeployStatus(id, false) polls
+ * whose interval adapts to how the deploy is progressing.
+ * <p>
+ * Polling starts at the minimum wait. While the number of components deployed plus tests
+ * completed is moving, the next wait is half the estimated time remaining at the observed rate.
+ * When there is no progress to go on the wait grows by half each time. The wait always stays
+ * between the minimum and maximum, so short deploys are noticed quickly and long ones
+ * don't use up API calls.
+ */
+public class DeployPoller {
+
+    private long minWaitMillis;
+    private long maxWaitMillis;
+    private long timeoutMillis;
+    private int polls;
+
+    /**
+     * @param timeoutMillis give up after this long, zero for no limit
+     */
+    public DeployPoller(long minWaitMillis, long maxWaitMillis, long timeoutMillis) {
+        this.minWaitMillis = minWaitMillis;
+        this.maxWaitMillis = Math.max(minWaitMillis, maxWaitMillis);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Poll until the deploy is done.
+     * @return the last status, which does not include the details
+     */
+    public DeployResult waitForCompletion(MetadataConnection connection, String id)
+            throws ConnectionException, InterruptedException {
+        long start = System.currentTimeMillis();
+        long wait = minWaitMillis;
+        long lastTime = start;
+        double lastProgress = 0.0d;
+        polls = 0;
+        while (true) {
+            Thread.sleep(wait);
+            DeployResult result = connection.checkDeployStatus(id, false);
+            polls++;
+            if (result.isDone()) {
+                return result;
+            }
+            long now = System.currentTimeMillis();
+            if (timeoutMillis > 0 && now - start > timeoutMillis) {
+                throw new BuildException("Deploy " + id + " did not complete within " + timeoutMillis + " ms");
+            }
+            double progress = progress(result);
+            if (progress > lastProgress) {
+                double rate = (progress - lastProgress) / Math.max(1, now - lastTime);
+                wait = (long) ((1.0d - progress) / rate / 2);
+                lastProgress = progress;
+                lastTime = now;
+            } else {
+                wait = wait + wait / 2;
+            }
+            wait = Math.max(minWaitMillis, Math.min(maxWaitMillis, wait));
+        }
+    }
+
+    /**
+     * The number of polls made by the last wait.
+     */
+    public int getPolls() {
+        return polls;
+    }
+
+    // Fraction of the components and tests done, zero when the totals aren't known yet
+    private static double progress(DeployResult result) {
+        int total = result.getNumberComponentsTotal() + result.getNumberTestsTotal();
+        if (total <= 0) {
+            return 0.0d;
+        }
+        int done = result.getNumberComponentsDeployed() + result.getNumberComponentErrors()
+                + result.getNumberTestsCompleted() + result.getNumberTestErrors();
+        return Math.min(1.0d, (double) done / total);
+    }
+}
@@ -0,0 +1,17 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.ws.ConnectionException;
+
+/**
+ * Told about each deploy status fetched through a CachingMetadataConnection.
+ */
+public interface DeployStatusListener {
+
+    /**
+     * @param connection the connection the status was fetched through, usable for further calls
+     * @param result the status, with details only if they were asked for
+     */
+    void deployStatusChecked(MetadataConnection connection, DeployResult result) throws ConnectionException;
+}
@@ -0,0 +1,108 @@
+package com.claimvantage.force.ant;
+
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.DirectoryScanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zips the contents of a deploy root directory with paths relative to it, ready for MetadataConnection.deploy.
+ * A delta package can also be zipped: just the listed files plus a generated package.xml.
+ */
+public class DeployZip {
+
+    private DeployZip() {
+    }
+
+    public static byte[] zip(File root) {
+        if (root == null || !root.isDirectory()) {
+            throw new BuildException("deployRoot '" + root + "' is not a directory");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ZipOutputStream zip = new ZipOutputStream(bytes);
+            try {
+                byte[] buffer = new byte[8192];
+                for (String path : paths(root)) {
+                    addFile(zip, new File(root, path), path, buffer);
+                }
+            } finally {
+                zip.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to zip " + root, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param paths the files to include, relative to the root and separated by /
+     * @param packageXml the content of the package.xml to include in place of the root's one
+     */
+    public static byte[] zip(File root, Collection<String> paths, byte[] packageXml) {
+        if (root == null || !root.isDirectory()) {
+            throw new BuildException("deployRoot '" + root + "' is not a directory");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ZipOutputStream zip = new ZipOutputStream(bytes);
+            try {
+                byte[] buffer = new byte[8192];
+                for (String path : paths) {
+                    addFile(zip, new File(root, path), path, buffer);
+                }
+                zip.putNextEntry(new ZipEntry("package.xml"));
+                zip.write(packageXml);
+                zip.closeEntry();
+            } finally {
+                zip.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to zip " + root, e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The files under the root as DeployTask would zip them, so leaving out Ant's default excludes
+     * such as version control folders and editor backup files.
+     * @return the paths relative to the root and separated by /, sorted
+     */
+    public static List<String> paths(File root) {
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir(root);
+        scanner.addDefaultExcludes();
+        scanner.scan();
+        String[] files = scanner.getIncludedFiles();
+        List<String> paths = new ArrayList<String>(files.length);
+        for (String file : files) {
+            paths.add(file.replace(File.separatorChar, '/'));
+        }
+        Collections.sort(paths);
+        return paths;
+    }
+
+    private static void addFile(ZipOutputStream zip, File file, String name, byte[] buffer) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                zip.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,285 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.CodeCoverageWarning;
+import com.sforce.soap.metadata.DeployDetails;
+import com.sforce.soap.metadata.DeployMessage;
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.FlowCoverageResult;
+import com.sforce.soap.metadata.FlowCoverageWarning;
+import com.sforce.soap.metadata.RunTestFailure;
+import com.sforce.soap.metadata.RunTestsResult;
+import org.apache.tools.ant.BuildException;
+import org.apache.tools.ant.util.DOMElementWriter;
+import org.apache.tools.ant.util.StringUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The failures of an unsuccessful deploy: component failures, test failures, code coverage
+ * warnings, flow coverage warnings and flows with no coverage.
+ * <p>
+ * All of them can be streamed to an XML file, one element per line, while the build failure
+ * message is limited to the first few so that a badly broken deploy doesn't flood the log.
+ */
+public class FailureReport {
+
+    private static final String INDENT = "  ";
+    private static final String LINE_SEP = StringUtils.LINE_SEP;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private List<DeployMessage> componentFailures = new ArrayList<DeployMessage>();
+    private List<RunTestFailure> testFailures = new ArrayList<RunTestFailure>();
+    private List<CodeCoverageWarning> codeCoverageWarnings = new ArrayList<CodeCoverageWarning>();
+    private List<FlowCoverageWarning> flowCoverageWarnings = new ArrayList<FlowCoverageWarning>();
+    private List<FlowCoverageResult> uncoveredFlows = new ArrayList<FlowCoverageResult>();
+
+    private Writer writer;
+    private DOMElementWriter encoder = new DOMElementWriter();
+
+    public FailureReport(DeployResult result) {
+        DeployDetails details = result.getDetails();
+        if (details == null) {
+            return;
+        }
+        addComponentFailures(details.getComponentSuccesses());
+        addComponentFailures(details.getComponentFailures());
+        RunTestsResult rtr = details.getRunTestResult();
+        if (rtr == null) {
+            return;
+        }
+        if (rtr.getFailures() != null) {
+            Collections.addAll(testFailures, rtr.getFailures());
+        }
+        addCoverage(rtr);
+    }
+
+    private FailureReport() {
+    }
+
+    /**
+     * Just the coverage warnings and uncovered flows of a result, such as one merged from several orgs.
+     */
+    public static FailureReport coverage(RunTestsResult rtr) {
+        FailureReport report = new FailureReport();
+        report.addCoverage(rtr);
+        return report;
+    }
+
+    /**
+     * The component and test failures without the coverage warnings and uncovered flows.
+     */
+    public FailureReport withoutCoverage() {
+        FailureReport report = new FailureReport();
+        report.componentFailures.addAll(componentFailures);
+        report.testFailures.addAll(testFailures);
+        return report;
+    }
+
+    /**
+     * True if there are code or flow coverage warnings.
+     */
+    public boolean hasCoverageWarnings() {
+        return !codeCoverageWarnings.isEmpty() || !flowCoverageWarnings.isEmpty();
+    }
+
+    private void addCoverage(RunTestsResult rtr) {
+        if (rtr.getCodeCoverageWarnings() != null) {
+            Collections.addAll(codeCoverageWarnings, rtr.getCodeCoverageWarnings());
+        }
+        if (rtr.getFlowCoverageWarnings() != null) {
+            Collections.addAll(flowCoverageWarnings, rtr.getFlowCoverageWarnings());
+            if (rtr.getFlowCoverage() != null) {
+                for (FlowCoverageResult flowCover : rtr.getFlowCoverage()) {
+                    if (flowCover.getNumElements() == flowCover.getNumElementsNotCovered()) {
+                        uncoveredFlows.add(flowCover);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The total number of failures, warnings and uncovered flows.
+     */
+    public int size() {
+        return componentFailures.size() + testFailures.size() + codeCoverageWarnings.size()
+                + flowCoverageWarnings.size() + uncoveredFlows.size();
+    }
+
+    /**
+     * The build failure message in the same form as always, but listing at most limit entries.
+     * @param file where the full list was written or null
+     */
+    public String summary(int limit, File file) {
+        StringBuilder buf = new StringBuilder("Failures:\n");
+        int shown = 0;
+        for (DeployMessage message : componentFailures) {
+            if (shown++ >= limit) {
+                break;
+            }
+            buf.append(message.getFileName()).append(":").append(message.getProblem()).append("\n");
+        }
+        for (RunTestFailure failure : testFailures) {
+            if (shown++ >= limit) {
+                break;
+            }
+            buf.append("Test failure, method: ").append(name(failure.getNamespace(), failure.getName())).append(".")
+                    .append(failure.getMethodName()).append(" -- ")
+                    .append(failure.getMessage()).append(" stack ")
+                    .append(failure.getStackTrace()).append("\n\n");
+        }
+        for (CodeCoverageWarning warning : codeCoverageWarnings) {
+            if (shown++ >= limit) {
+                break;
+            }
+            buf.append("Code coverage issue");
+            if (warning.getName() != null) {
+                buf.append(", class: ").append(name(warning.getNamespace(), warning.getName()));
+            }
+            buf.append(" -- ").append(warning.getMessage()).append("\n");
+        }
+        for (FlowCoverageWarning warning : flowCoverageWarnings) {
+            if (shown++ >= limit) {
+                break;
+            }
+            buf.append("Flow coverage issue");
+            if (warning.getFlowName() != null) {
+                buf.append(", flow: ").append(name(warning.getFlowNamespace(), warning.getFlowName()));
+            }
+            buf.append(" -- ").append(warning.getMessage()).append("\n");
+        }
+        if (!uncoveredFlows.isEmpty()) {
+            buf.append("\nThere are ").append(uncoveredFlows.size()).append(" flows that have no coverage:\n");
+            for (FlowCoverageResult flowCover : uncoveredFlows) {
+                if (shown++ >= limit) {
+                    break;
+                }
+                buf.append("\t - ").append(flowCover.getFlowName()).append("\n");
+            }
+        }
+        int notShown = size() - Math.min(limit, size());
+        if (notShown > 0) {
+            buf.append("\n... ").append(notShown).append(" more not shown");
+            if (file != null) {
+                buf.append(", all are listed in ").append(file);
+            }
+            buf.append("\n");
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Write every entry to the named XML file in the directory.
+     * @return the file written
+     */
+    public File write(File toDir, String fileName) {
+        if (!toDir.exists() && !toDir.mkdirs()) {
+            throw new BuildException("Failed to create directory '" + toDir + "'");
+        }
+        File file = new File(toDir, fileName);
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF8"), BUFFER_SIZE);
+            try {
+                writeXml();
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to write " + file, e);
+        }
+        return file;
+    }
+
+    private void writeXml() throws IOException {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>");
+        writer.write(LINE_SEP);
+        writer.write("<deployfailures");
+        writeAttribute("componentfailures", String.valueOf(componentFailures.size()));
+        writeAttribute("testfailures", String.valueOf(testFailures.size()));
+        writeAttribute("codecoveragewarnings", String.valueOf(codeCoverageWarnings.size()));
+        writeAttribute("flowcoveragewarnings", String.valueOf(flowCoverageWarnings.size()));
+        writeAttribute("uncoveredflows", String.valueOf(uncoveredFlows.size()));
+        writer.write(">");
+        writer.write(LINE_SEP);
+        for (DeployMessage message : componentFailures) {
+            writer.write(INDENT + "<componentfailure");
+            writeAttribute("file", message.getFileName());
+            writeAttribute("fullname", message.getFullName());
+            writeAttribute("type", message.getComponentType());
+            writeAttribute("line", String.valueOf(message.getLineNumber()));
+            writeAttribute("column", String.valueOf(message.getColumnNumber()));
+            writeAttribute("problemtype", message.getProblemType() != null ? message.getProblemType().toString() : null);
+            writeText(message.getProblem(), "componentfailure");
+        }
+        for (RunTestFailure failure : testFailures) {
+            writer.write(INDENT + "<testfailure");
+            writeAttribute("class", name(failure.getNamespace(), failure.getName()));
+            writeAttribute("method", failure.getMethodName());
+            writeAttribute("type", failure.getType());
+            writeAttribute("message", failure.getMessage());
+            writeText(failure.getStackTrace(), "testfailure");
+        }
+        for (CodeCoverageWarning warning : codeCoverageWarnings) {
+            writer.write(INDENT + "<codecoveragewarning");
+            writeAttribute("class", warning.getName() != null ? name(warning.getNamespace(), warning.getName()) : null);
+            writeText(warning.getMessage(), "codecoveragewarning");
+        }
+        for (FlowCoverageWarning warning : flowCoverageWarnings) {
+            writer.write(INDENT + "<flowcoveragewarning");
+            writeAttribute("flow", warning.getFlowName() != null
+                    ? name(warning.getFlowNamespace(), warning.getFlowName()) : null);
+            writeText(warning.getMessage(), "flowcoveragewarning");
+        }
+        for (FlowCoverageResult flowCover : uncoveredFlows) {
+            writer.write(INDENT + "<uncoveredflow");
+            writeAttribute("flow", name(flowCover.getFlowNamespace(), flowCover.getFlowName()));
+            writeAttribute("elements", String.valueOf(flowCover.getNumElements()));
+            writer.write(" />");
+            writer.write(LINE_SEP);
+        }
+        writer.write("</deployfailures>");
+        writer.write(LINE_SEP);
+    }
+
+    // Closes the start tag, writes the text if there is any and ends the element
+    private void writeText(String text, String name) throws IOException {
+        if (text == null || text.length() == 0) {
+            writer.write(" />");
+        } else {
+            writer.write(">");
+            writer.write(encoder.encode(text));
+            writer.write("</" + name + ">");
+        }
+        writer.write(LINE_SEP);
+    }
+
+    private void writeAttribute(String name, String value) throws IOException {
+        writer.write(" " + name + "=\"");
+        if (value != null) {
+            writer.write(encoder.encodeAttributeValue(value));
+        }
+        writer.write("\"");
+    }
+
+    private void addComponentFailures(DeployMessage[] messages) {
+        if (messages != null) {
+            for (DeployMessage message : messages) {
+                if (!message.isSuccess()) {
+                    componentFailures.add(message);
+                }
+            }
+        }
+    }
+
+    private static String name(String namespace, String name) {
+        return (namespace != null ? namespace + "." : "") + name;
+    }
+}
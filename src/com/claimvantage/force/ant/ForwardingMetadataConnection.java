@@ -0,0 +1,206 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.AllOrNoneHeader_element;
+import com.sforce.soap.metadata.AsyncResult;
+import com.sforce.soap.metadata.CallOptions_element;
+import com.sforce.soap.metadata.CancelDeployResult;
+import com.sforce.soap.metadata.DebuggingHeader_element;
+import com.sforce.soap.metadata.DebuggingInfo_element;
+import com.sforce.soap.metadata.DeleteResult;
+import com.sforce.soap.metadata.DeployOptions;
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.DescribeMetadataResult;
+import com.sforce.soap.metadata.DescribeValueTypeResult;
+import com.sforce.soap.metadata.FileProperties;
+import com.sforce.soap.metadata.ListMetadataQuery;
+import com.sforce.soap.metadata.LogInfo;
+import com.sforce.soap.metadata.LogType;
+import com.sforce.soap.metadata.Metadata;
+import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.soap.metadata.ReadResult;
+import com.sforce.soap.metadata.RetrieveRequest;
+import com.sforce.soap.metadata.RetrieveResult;
+import com.sforce.soap.metadata.SaveResult;
+import com.sforce.soap.metadata.SessionHeader_element;
+import com.sforce.soap.metadata.UpsertResult;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.ConnectorConfig;
+import com.sforce.ws.bind.XMLizable;
+
+import javax.xml.namespace.QName;
+
+/**
+ * MetadataConnection that passes every call, including the header accessors, to another
+ * connection so that subclasses only need to override the calls they change.
+ * <p>
+ * The stub this class inherits is never used to make calls.
+ */
+public abstract class ForwardingMetadataConnection extends MetadataConnection {
+
+    protected MetadataConnection delegate;
+
+    protected ForwardingMetadataConnection(MetadataConnection delegate) throws ConnectionException {
+        super(delegate.getConfig());
+        this.delegate = delegate;
+    }
+
+    public ConnectorConfig getConfig() {
+        return delegate.getConfig();
+    }
+
+    public void setSessionHeader(String sessionId) {
+        delegate.setSessionHeader(sessionId);
+    }
+
+    public void clearSessionHeader() {
+        delegate.clearSessionHeader();
+    }
+
+    public SessionHeader_element getSessionHeader() {
+        return delegate.getSessionHeader();
+    }
+
+    public void __setSessionHeader(SessionHeader_element value) {
+        delegate.__setSessionHeader(value);
+    }
+
+    public void setDebuggingInfo(String debugLog) {
+        delegate.setDebuggingInfo(debugLog);
+    }
+
+    public void clearDebuggingInfo() {
+        delegate.clearDebuggingInfo();
+    }
+
+    public DebuggingInfo_element getDebuggingInfo() {
+        return delegate.getDebuggingInfo();
+    }
+
+    public void __setDebuggingInfo(DebuggingInfo_element value) {
+        delegate.__setDebuggingInfo(value);
+    }
+
+    public void setCallOptions(String client) {
+        delegate.setCallOptions(client);
+    }
+
+    public void clearCallOptions() {
+        delegate.clearCallOptions();
+    }
+
+    public CallOptions_element getCallOptions() {
+        return delegate.getCallOptions();
+    }
+
+    public void __setCallOptions(CallOptions_element value) {
+        delegate.__setCallOptions(value);
+    }
+
+    public void setDebuggingHeader(LogInfo[] categories, LogType debugLevel) {
+        delegate.setDebuggingHeader(categories, debugLevel);
+    }
+
+    public void clearDebuggingHeader() {
+        delegate.clearDebuggingHeader();
+    }
+
+    public DebuggingHeader_element getDebuggingHeader() {
+        return delegate.getDebuggingHeader();
+    }
+
+    public void __setDebuggingHeader(DebuggingHeader_element value) {
+        delegate.__setDebuggingHeader(value);
+    }
+
+    public void setAllOrNoneHeader(boolean allOrNone) {
+        delegate.setAllOrNoneHeader(allOrNone);
+    }
+
+    public void clearAllOrNoneHeader() {
+        delegate.clearAllOrNoneHeader();
+    }
+
+    public AllOrNoneHeader_element getAllOrNoneHeader() {
+        return delegate.getAllOrNoneHeader();
+    }
+
+    public void __setAllOrNoneHeader(AllOrNoneHeader_element value) {
+        delegate.__setAllOrNoneHeader(value);
+    }
+
+    public void addExtraHeader(QName name, XMLizable header) {
+        delegate.addExtraHeader(name, header);
+    }
+
+    public void removeExtraHeader(QName name) {
+        delegate.removeExtraHeader(name);
+    }
+
+    public XMLizable getExtraHeader(QName name) {
+        return delegate.getExtraHeader(name);
+    }
+
+    public void clearExtraHeaders() {
+        delegate.clearExtraHeaders();
+    }
+
+    public DeleteResult[] deleteMetadata(String type, String[] fullNames) throws ConnectionException {
+        return delegate.deleteMetadata(type, fullNames);
+    }
+
+    public SaveResult renameMetadata(String type, String oldFullName, String newFullName) throws ConnectionException {
+        return delegate.renameMetadata(type, oldFullName, newFullName);
+    }
+
+    public SaveResult[] updateMetadata(Metadata[] metadata) throws ConnectionException {
+        return delegate.updateMetadata(metadata);
+    }
+
+    public DescribeMetadataResult describeMetadata(double asOfVersion) throws ConnectionException {
+        return delegate.describeMetadata(asOfVersion);
+    }
+
+    public RetrieveResult checkRetrieveStatus(String asyncProcessId, boolean includeZip) throws ConnectionException {
+        return delegate.checkRetrieveStatus(asyncProcessId, includeZip);
+    }
+
+    public AsyncResult retrieve(RetrieveRequest retrieveRequest) throws ConnectionException {
+        return delegate.retrieve(retrieveRequest);
+    }
+
+    public DescribeValueTypeResult describeValueType(String type) throws ConnectionException {
+        return delegate.describeValueType(type);
+    }
+
+    public SaveResult[] createMetadata(Metadata[] metadata) throws ConnectionException {
+        return delegate.createMetadata(metadata);
+    }
+
+    public ReadResult readMetadata(String type, String[] fullNames) throws ConnectionException {
+        return delegate.readMetadata(type, fullNames);
+    }
+
+    public UpsertResult[] upsertMetadata(Metadata[] metadata) throws ConnectionException {
+        return delegate.upsertMetadata(metadata);
+    }
+
+    public FileProperties[] listMetadata(ListMetadataQuery[] queries, double asOfVersion) throws ConnectionException {
+        return delegate.listMetadata(queries, asOfVersion);
+    }
+
+    public DeployResult checkDeployStatus(String asyncProcessId, boolean includeDetails) throws ConnectionException {
+        return delegate.checkDeployStatus(asyncProcessId, includeDetails);
+    }
+
+    public AsyncResult deploy(byte[] zipFile, DeployOptions deployOptions) throws ConnectionException {
+        return delegate.deploy(zipFile, deployOptions);
+    }
+
+    public String deployRecentValidation(String validationId) throws ConnectionException {
+        return delegate.deployRecentValidation(validationId);
+    }
+
+    public CancelDeployResult cancelDeploy(String asyncProcessId) throws ConnectionException {
+        return delegate.cancelDeploy(asyncProcessId);
+    }
+}
@@ -0,0 +1,282 @@
+package com.claimvantage.force.ant;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Index of which Apex sources reference which names, used to work out which tests a change can affect.
+ * <p>
+ * Each .cls and .trigger file is reduced to the set of identifiers it uses (outside comments and
+ * string literals). A class "provides" its own name and a trigger provides the name of the object
+ * it is on, so a change to a trigger affects the code that references that object.
+ * The index is persisted as a text file and only files whose modification time or size
+ * has changed are parsed again. Apex is case insensitive so all names are held in lower case.
+ */
+public class ImpactIndex {
+
+    private static final String HEADER = "# apex impact index v1";
+    private static final String SEPARATOR = "\t";
+
+    private File indexFile;
+    private Map<String, Entry> entries = new HashMap<String, Entry>();
+    private int parsed;
+
+    public ImpactIndex(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Bring the index up to date with the given source files, parsing only new or modified ones,
+     * and save it.
+     */
+    public void update(Collection<File> sources) {
+        Map<String, Entry> previous = load();
+        entries = new HashMap<String, Entry>();
+        parsed = 0;
+        for (File source : sources) {
+            String path = source.getAbsolutePath();
+            Entry entry = previous.get(path);
+            if (entry == null || entry.lastModified != source.lastModified() || entry.length != source.length()) {
+                entry = parse(source);
+                parsed++;
+            }
+            entries.put(path, entry);
+        }
+        save();
+    }
+
+    /**
+     * The number of files parsed by the last update, the rest came from the persisted index.
+     */
+    public int getParsed() {
+        return parsed;
+    }
+
+    /**
+     * Returns the lower case names of the changed files plus of every indexed file that
+     * directly or indirectly references one of them.
+     * @param changedPaths paths of the changed files, only the part of the file name before the first dot is used
+     */
+    public Set<String> affectedNames(Collection<String> changedPaths) {
+        Map<String, Entry> byName = new HashMap<String, Entry>();
+        Map<String, List<Entry>> byToken = new HashMap<String, List<Entry>>();
+        for (Entry entry : entries.values()) {
+            byName.put(entry.name, entry);
+            for (String token : entry.tokens) {
+                List<Entry> referencing = byToken.get(token);
+                if (referencing == null) {
+                    referencing = new ArrayList<Entry>();
+                    byToken.put(token, referencing);
+                }
+                referencing.add(entry);
+            }
+        }
+
+        Set<String> affected = new LinkedHashSet<String>();
+        Set<String> queued = new HashSet<String>();
+        Deque<String> queue = new ArrayDeque<String>();
+        for (String path : changedPaths) {
+            String name = name(new File(path.trim()).getName());
+            if (name.length() == 0) {
+                continue;
+            }
+            affected.add(name);
+            Entry entry = byName.get(name);
+            String provides = entry != null ? entry.provides : name;
+            if (queued.add(provides)) {
+                queue.add(provides);
+            }
+        }
+        while (!queue.isEmpty()) {
+            List<Entry> referencing = byToken.get(queue.poll());
+            if (referencing != null) {
+                for (Entry entry : referencing) {
+                    affected.add(entry.name);
+                    if (queued.add(entry.provides)) {
+                        queue.add(entry.provides);
+                    }
+                }
+            }
+        }
+        return affected;
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> loaded = new HashMap<String, Entry>();
+        if (!indexFile.isFile()) {
+            return loaded;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    return loaded;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR, -1);
+                    if (fields.length == 6) {
+                        Entry entry = new Entry();
+                        entry.lastModified = Long.parseLong(fields[1]);
+                        entry.length = Long.parseLong(fields[2]);
+                        entry.name = fields[3];
+                        entry.provides = fields[4];
+                        entry.tokens = fields[5].length() > 0 ? fields[5].split(" ") : new String[0];
+                        loaded.put(fields[0], entry);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // A damaged index is just rebuilt
+            loaded.clear();
+        } catch (NumberFormatException e) {
+            loaded.clear();
+        }
+        return loaded;
+    }
+
+    private void save() {
+        File dir = indexFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new BuildException("Failed to create directory '" + dir + "'");
+        }
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile), "UTF8"));
+            try {
+                writer.write(HEADER + "\n");
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    Entry entry = e.getValue();
+                    writer.write(e.getKey() + SEPARATOR + entry.lastModified + SEPARATOR + entry.length
+                            + SEPARATOR + entry.name + SEPARATOR + entry.provides + SEPARATOR);
+                    for (int i = 0; i < entry.tokens.length; i++) {
+                        if (i > 0) {
+                            writer.write(' ');
+                        }
+                        writer.write(entry.tokens[i]);
+                    }
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to write impact index " + indexFile, e);
+        }
+    }
+
+    private static Entry parse(File source) {
+        Entry entry = new Entry();
+        entry.lastModified = source.lastModified();
+        entry.length = source.length();
+        entry.name = name(source.getName());
+        entry.provides = entry.name;
+        List<String> identifiers;
+        try {
+            identifiers = identifiers(source);
+        } catch (IOException e) {
+            throw new BuildException("Unable to read " + source, e);
+        }
+        // trigger <name> on <object> (...)
+        if (source.getName().endsWith(".trigger")) {
+            int i = identifiers.indexOf("trigger");
+            if (i >= 0 && i + 3 < identifiers.size() && "on".equals(identifiers.get(i + 2))) {
+                entry.provides = identifiers.get(i + 3);
+            }
+        }
+        Set<String> tokens = new HashSet<String>(identifiers);
+        tokens.remove(entry.name);
+        entry.tokens = tokens.toArray(new String[tokens.size()]);
+        Arrays.sort(entry.tokens);
+        return entry;
+    }
+
+    // The lower case identifiers in the order they appear, skipping comments and string literals
+    private static List<String> identifiers(File source) throws IOException {
+        List<String> identifiers = new ArrayList<String>();
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), "UTF8"));
+        try {
+            StringBuilder identifier = new StringBuilder();
+            int previous = -1;
+            int c = reader.read();
+            while (c != -1) {
+                int next = reader.read();
+                if (Character.isLetterOrDigit(c) || c == '_') {
+                    identifier.append((char) Character.toLowerCase(c));
+                } else {
+                    addIdentifier(identifiers, identifier);
+                    if (c == '/' && next == '/') {
+                        while (next != -1 && next != '\n') {
+                            next = reader.read();
+                        }
+                    } else if (c == '/' && next == '*') {
+                        previous = -1;
+                        next = reader.read();
+                        while (next != -1 && !(previous == '*' && next == '/')) {
+                            previous = next;
+                            next = reader.read();
+                        }
+                        next = reader.read();
+                    } else if (c == '\'') {
+                        previous = -1;
+                        while (next != -1 && !(next == '\'' && previous != '\\')) {
+                            previous = previous == '\\' ? -1 : next;
+                            next = reader.read();
+                        }
+                        next = reader.read();
+                    }
+                }
+                c = next;
+            }
+            addIdentifier(identifiers, identifier);
+        } finally {
+            reader.close();
+        }
+        return identifiers;
+    }
+
+    private static void addIdentifier(List<String> identifiers, StringBuilder identifier) {
+        if (identifier.length() > 0) {
+            if (!Character.isDigit(identifier.charAt(0))) {
+                identifiers.add(identifier.toString());
+            }
+            identifier.setLength(0);
+        }
+    }
+
+    // Class name from a file name such as Foo.cls or Foo.cls-meta.xml
+    private static String name(String fileName) {
+        int dot = fileName.indexOf('.');
+        return (dot >= 0 ? fileName.substring(0, dot) : fileName).toLowerCase();
+    }
+
+    private static class Entry {
+        private long lastModified;
+        private long length;
+        private String name;
+        private String provides;
+        private String[] tokens;
+    }
+}
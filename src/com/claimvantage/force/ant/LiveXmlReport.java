@@ -0,0 +1,93 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.soap.metadata.RunTestFailure;
+import com.sforce.soap.metadata.RunTestSuccess;
+import com.sforce.soap.metadata.RunTestsResult;
+import com.sforce.ws.ConnectionException;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes the tests that have completed so far while a deploy is still running.
+ * <p>
+ * Each time the polled status shows more completed tests the detailed status is fetched and
+ * the tests not reported before (by class plus method) are written to a new, complete
+ * TEST-Apex-progress-N.xml suite file, so a CI server can show failures long before the end.
+ * The progress files are removed by {@link #close()} once the deploy is over.
+ */
+public class LiveXmlReport implements DeployStatusListener {
+
+    private static final String SUITE_NAME_PREFIX = "Apex-progress-";
+
+    private File toDir;
+    private Set<String> reported = new HashSet<String>();
+    private List<File> files = new ArrayList<File>();
+    private int testsCompleted;
+
+    public LiveXmlReport(File toDir) {
+        this.toDir = toDir;
+    }
+
+    public void deployStatusChecked(MetadataConnection connection, DeployResult result) throws ConnectionException {
+        if (result.isDone() || result.getNumberTestsCompleted() <= testsCompleted) {
+            return;
+        }
+        testsCompleted = result.getNumberTestsCompleted();
+        DeployResult detailed = result.getDetails() != null
+                ? result
+                : connection.checkDeployStatus(result.getId(), true);
+        if (detailed.getDetails() != null && detailed.getDetails().getRunTestResult() != null) {
+            update(detailed.getDetails().getRunTestResult());
+        }
+    }
+
+    /**
+     * Write the tests in the result that have not already been written.
+     * @return the number of tests written
+     */
+    public int update(RunTestsResult rtr) {
+        List<RunTestSuccess> successes = new ArrayList<RunTestSuccess>();
+        List<RunTestFailure> failures = new ArrayList<RunTestFailure>();
+        if (rtr.getSuccesses() != null) {
+            for (RunTestSuccess success : rtr.getSuccesses()) {
+                if (reported.add(key(success.getNamespace(), success.getName(), success.getMethodName()))) {
+                    successes.add(success);
+                }
+            }
+        }
+        if (rtr.getFailures() != null) {
+            for (RunTestFailure failure : rtr.getFailures()) {
+                if (reported.add(key(failure.getNamespace(), failure.getName(), failure.getMethodName()))) {
+                    failures.add(failure);
+                }
+            }
+        }
+        int count = successes.size() + failures.size();
+        if (count > 0) {
+            String suiteName = SUITE_NAME_PREFIX + (files.size() + 1);
+            new XmlReport(toDir).report(suiteName, successes, failures);
+            files.add(new File(toDir, XmlReport.fileName(suiteName)));
+        }
+        return count;
+    }
+
+    /**
+     * Remove the progress files so that the tests are not counted twice alongside the final report.
+     */
+    public void close() {
+        for (File file : files) {
+            file.delete();
+        }
+        files.clear();
+    }
+
+    private static String key(String namespace, String className, String methodName) {
+        return (namespace != null && namespace.length() > 0 ? namespace + "." : "") + className + "." + methodName;
+    }
+}
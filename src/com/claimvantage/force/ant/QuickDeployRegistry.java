@@ -0,0 +1,158 @@
+package com.claimvantage.force.ant;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The successful validations (check only deploys) of each package and org, so that deploying
+ * the same package later can use the validation instead of running the tests again.
+ * <p>
+ * A package is identified by a hash of the names and content of its zip entries (not of the
+ * zip itself, whose timestamps and compression vary) plus the deploy options. Salesforce keeps
+ * a validation for 10 days so older entries are dropped. The registry is a tab separated text file.
+ */
+public class QuickDeployRegistry {
+
+    public static final long VALIDITY_MILLIS = 10L * 24 * 60 * 60 * 1000;
+
+    private static final String HEADER = "# quick deploy registry v1";
+    private static final String SEPARATOR = "\t";
+
+    private File registryFile;
+
+    public QuickDeployRegistry(File registryFile) {
+        this.registryFile = registryFile;
+    }
+
+    /**
+     * Hash of the zip's entries, whatever their order, and of the options it is deployed with.
+     */
+    public static String hash(byte[] zip, String options) {
+        Map<String, String> entries = new TreeMap<String, String>();
+        try {
+            ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip));
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                ZipEntry entry;
+                while ((entry = in.getNextEntry()) != null) {
+                    MessageDigest digest = ContentHash.newDigest();
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        digest.update(buffer, 0, n);
+                    }
+                    entries.put(entry.getName(), ContentHash.hex(digest.digest()));
+                }
+            } finally {
+                in.close();
+            }
+            MessageDigest digest = ContentHash.newDigest();
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                digest.update((entry.getKey() + SEPARATOR + entry.getValue() + "\n").getBytes("UTF8"));
+            }
+            digest.update(options.getBytes("UTF8"));
+            return ContentHash.hex(digest.digest());
+        } catch (IOException e) {
+            throw new BuildException("Unable to read the deploy zip", e);
+        }
+    }
+
+    /**
+     * The id of a validation of the package in the org that is still recent enough to deploy, or null.
+     */
+    public String find(String hash, String org, long now) {
+        String[] entry = load().get(key(hash, org));
+        if (entry == null || now - Long.parseLong(entry[1]) > VALIDITY_MILLIS) {
+            return null;
+        }
+        return entry[0];
+    }
+
+    public void put(String hash, String org, String validationId, long completedMillis) {
+        Map<String, String[]> entries = load();
+        entries.put(key(hash, org), new String[] {validationId, String.valueOf(completedMillis)});
+        save(entries);
+    }
+
+    /**
+     * Forget a validation, once it has been deployed or has turned out to be no longer usable.
+     */
+    public void remove(String hash, String org) {
+        Map<String, String[]> entries = load();
+        if (entries.remove(key(hash, org)) != null) {
+            save(entries);
+        }
+    }
+
+    private Map<String, String[]> load() {
+        Map<String, String[]> loaded = new LinkedHashMap<String, String[]>();
+        if (!registryFile.isFile()) {
+            return loaded;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(registryFile), "UTF8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    return loaded;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR);
+                    if (fields.length == 4 && fields[3].matches("\\d+")) {
+                        loaded.put(fields[0] + SEPARATOR + fields[1], new String[] {fields[2], fields[3]});
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to read quick deploy registry " + registryFile, e);
+        }
+        return loaded;
+    }
+
+    // Expired validations are dropped whenever the file is written
+    private void save(Map<String, String[]> entries) {
+        File dir = registryFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new BuildException("Failed to create directory '" + dir + "'");
+        }
+        long now = System.currentTimeMillis();
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(registryFile), "UTF8"));
+            try {
+                writer.write(HEADER + "\n");
+                for (Map.Entry<String, String[]> entry : entries.entrySet()) {
+                    String[] value = entry.getValue();
+                    if (now - Long.parseLong(value[1]) <= VALIDITY_MILLIS) {
+                        writer.write(entry.getKey() + SEPARATOR + value[0] + SEPARATOR + value[1] + "\n");
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to write quick deploy registry " + registryFile, e);
+        }
+    }
+
+    // The org is an org id, which can't hold a tab
+    private static String key(String hash, String org) {
+        return hash + SEPARATOR + org;
+    }
+}
@@ -0,0 +1,230 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.CodeCoverageResult;
+import com.sforce.soap.metadata.CodeCoverageWarning;
+import com.sforce.soap.metadata.CodeLocation;
+import com.sforce.soap.metadata.FlowCoverageResult;
+import com.sforce.soap.metadata.FlowCoverageWarning;
+import com.sforce.soap.metadata.RunTestFailure;
+import com.sforce.soap.metadata.RunTestSuccess;
+import com.sforce.soap.metadata.RunTestsResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Combines the results of running different tests in several orgs into one result.
+ * <p>
+ * Tests and counts are simply added up. A line of code is only reported as not covered if no org
+ * covered it. As each org only ran some of the tests, a code coverage warning that names the
+ * percentage required is checked again against the merged coverage: a class's warning is kept if
+ * the class is still below it, and the average warning is worked out again over all the classes.
+ * Other warnings are only kept if every org gave them.
+ */
+public class RunTestsResultMerger {
+
+    private static final Pattern REQUIRED = Pattern.compile("at least (\\d+)% test coverage is required");
+
+    private RunTestsResultMerger() {
+    }
+
+    public static RunTestsResult merge(List<RunTestsResult> results) {
+        if (results.size() == 1) {
+            return results.get(0);
+        }
+        RunTestsResult merged = new RunTestsResult();
+        List<RunTestSuccess> successes = new ArrayList<RunTestSuccess>();
+        List<RunTestFailure> failures = new ArrayList<RunTestFailure>();
+        Map<String, CodeCoverageResult> coverage = new LinkedHashMap<String, CodeCoverageResult>();
+        Map<String, FlowCoverageResult> flowCoverage = new LinkedHashMap<String, FlowCoverageResult>();
+        Map<String, Integer> codeWarningCounts = new HashMap<String, Integer>();
+        Map<String, CodeCoverageWarning> codeWarnings = new LinkedHashMap<String, CodeCoverageWarning>();
+        Map<String, Integer> flowWarningCounts = new HashMap<String, Integer>();
+        Map<String, FlowCoverageWarning> flowWarnings = new LinkedHashMap<String, FlowCoverageWarning>();
+        int numTestsRun = 0;
+        int numFailures = 0;
+        double totalTime = 0.0d;
+
+        for (RunTestsResult result : results) {
+            numTestsRun += result.getNumTestsRun();
+            numFailures += result.getNumFailures();
+            totalTime += result.getTotalTime();
+            if (result.getSuccesses() != null) {
+                successes.addAll(Arrays.asList(result.getSuccesses()));
+            }
+            if (result.getFailures() != null) {
+                failures.addAll(Arrays.asList(result.getFailures()));
+            }
+            if (result.getCodeCoverage() != null) {
+                for (CodeCoverageResult ccr : result.getCodeCoverage()) {
+                    String key = qualified(ccr.getNamespace(), ccr.getName()) + "." + ccr.getType();
+                    CodeCoverageResult existing = coverage.get(key);
+                    coverage.put(key, existing != null ? mergeCoverage(existing, ccr) : ccr);
+                }
+            }
+            if (result.getFlowCoverage() != null) {
+                for (FlowCoverageResult fcr : result.getFlowCoverage()) {
+                    String key = qualified(fcr.getFlowNamespace(), fcr.getFlowName());
+                    FlowCoverageResult existing = flowCoverage.get(key);
+                    if (existing == null || fcr.getNumElementsNotCovered() < existing.getNumElementsNotCovered()) {
+                        flowCoverage.put(key, fcr);
+                    }
+                }
+            }
+            if (result.getCodeCoverageWarnings() != null) {
+                for (CodeCoverageWarning warning : result.getCodeCoverageWarnings()) {
+                    String key = qualified(warning.getNamespace(), warning.getName()) + ":" + warning.getMessage();
+                    count(codeWarningCounts, key);
+                    if (!codeWarnings.containsKey(key)) {
+                        codeWarnings.put(key, warning);
+                    }
+                }
+            }
+            if (result.getFlowCoverageWarnings() != null) {
+                for (FlowCoverageWarning warning : result.getFlowCoverageWarnings()) {
+                    String key = qualified(warning.getFlowNamespace(), warning.getFlowName())
+                            + ":" + warning.getMessage();
+                    count(flowWarningCounts, key);
+                    if (!flowWarnings.containsKey(key)) {
+                        flowWarnings.put(key, warning);
+                    }
+                }
+            }
+        }
+
+        List<CodeCoverageWarning> keptCodeWarnings = new ArrayList<CodeCoverageWarning>();
+        boolean averageChecked = false;
+        for (Map.Entry<String, CodeCoverageWarning> entry : codeWarnings.entrySet()) {
+            CodeCoverageWarning warning = entry.getValue();
+            int required = requiredPercentage(warning.getMessage());
+            List<CodeCoverageResult> classCoverage = warning.getName() != null
+                    ? coverageOf(coverage.values(), qualified(warning.getNamespace(), warning.getName()))
+                    : new ArrayList<CodeCoverageResult>(coverage.values());
+            if (required < 0 || classCoverage.isEmpty()) {
+                if (codeWarningCounts.get(entry.getKey()) == results.size()) {
+                    keptCodeWarnings.add(warning);
+                }
+            } else if (warning.getName() == null) {
+                if (!averageChecked) {
+                    averageChecked = true;
+                    CodeCoverageWarning average = averageWarning(classCoverage, required);
+                    if (average != null) {
+                        keptCodeWarnings.add(average);
+                    }
+                }
+            } else {
+                for (CodeCoverageResult ccr : classCoverage) {
+                    if (below(ccr.getNumLocations() - ccr.getNumLocationsNotCovered(), ccr.getNumLocations(), required)) {
+                        keptCodeWarnings.add(warning);
+                        break;
+                    }
+                }
+            }
+        }
+        List<FlowCoverageWarning> keptFlowWarnings = new ArrayList<FlowCoverageWarning>();
+        for (Map.Entry<String, FlowCoverageWarning> entry : flowWarnings.entrySet()) {
+            if (flowWarningCounts.get(entry.getKey()) == results.size()) {
+                keptFlowWarnings.add(entry.getValue());
+            }
+        }
+
+        merged.setApexLogId(results.get(0).getApexLogId());
+        merged.setNumTestsRun(numTestsRun);
+        merged.setNumFailures(numFailures);
+        merged.setTotalTime(totalTime);
+        merged.setSuccesses(successes.toArray(new RunTestSuccess[successes.size()]));
+        merged.setFailures(failures.toArray(new RunTestFailure[failures.size()]));
+        merged.setCodeCoverage(coverage.values().toArray(new CodeCoverageResult[coverage.size()]));
+        merged.setFlowCoverage(flowCoverage.values().toArray(new FlowCoverageResult[flowCoverage.size()]));
+        merged.setCodeCoverageWarnings(keptCodeWarnings.toArray(new CodeCoverageWarning[keptCodeWarnings.size()]));
+        merged.setFlowCoverageWarnings(keptFlowWarnings.toArray(new FlowCoverageWarning[keptFlowWarnings.size()]));
+        return merged;
+    }
+
+    // Only lines not covered in either are still not covered
+    private static CodeCoverageResult mergeCoverage(CodeCoverageResult a, CodeCoverageResult b) {
+        CodeCoverageResult merged = new CodeCoverageResult();
+        merged.setId(a.getId());
+        merged.setName(a.getName());
+        merged.setNamespace(a.getNamespace());
+        merged.setType(a.getType());
+        merged.setNumLocations(Math.max(a.getNumLocations(), b.getNumLocations()));
+        merged.setDmlInfo(a.getDmlInfo());
+        merged.setMethodInfo(a.getMethodInfo());
+        merged.setSoqlInfo(a.getSoqlInfo());
+        merged.setSoslInfo(a.getSoslInfo());
+        if (a.getLocationsNotCovered() != null && b.getLocationsNotCovered() != null) {
+            Set<Integer> lines = new HashSet<Integer>();
+            for (CodeLocation location : b.getLocationsNotCovered()) {
+                lines.add(location.getLine());
+            }
+            List<CodeLocation> notCovered = new ArrayList<CodeLocation>();
+            for (CodeLocation location : a.getLocationsNotCovered()) {
+                if (lines.contains(location.getLine())) {
+                    notCovered.add(location);
+                }
+            }
+            merged.setLocationsNotCovered(notCovered.toArray(new CodeLocation[notCovered.size()]));
+            merged.setNumLocationsNotCovered(notCovered.size());
+        } else {
+            merged.setLocationsNotCovered(a.getLocationsNotCovered());
+            merged.setNumLocationsNotCovered(Math.min(a.getNumLocationsNotCovered(), b.getNumLocationsNotCovered()));
+        }
+        return merged;
+    }
+
+    // The percentage a warning says is needed or -1 if it doesn't say
+    private static int requiredPercentage(String message) {
+        Matcher matcher = message != null ? REQUIRED.matcher(message) : null;
+        return matcher != null && matcher.find() ? Integer.parseInt(matcher.group(1)) : -1;
+    }
+
+    // A class and a trigger can have the same name
+    private static List<CodeCoverageResult> coverageOf(Collection<CodeCoverageResult> coverage, String name) {
+        List<CodeCoverageResult> found = new ArrayList<CodeCoverageResult>();
+        for (CodeCoverageResult ccr : coverage) {
+            if (qualified(ccr.getNamespace(), ccr.getName()).equals(name)) {
+                found.add(ccr);
+            }
+        }
+        return found;
+    }
+
+    private static CodeCoverageWarning averageWarning(Collection<CodeCoverageResult> coverage, int required) {
+        long covered = 0;
+        long total = 0;
+        for (CodeCoverageResult ccr : coverage) {
+            covered += ccr.getNumLocations() - ccr.getNumLocationsNotCovered();
+            total += ccr.getNumLocations();
+        }
+        if (!below(covered, total, required)) {
+            return null;
+        }
+        CodeCoverageWarning warning = new CodeCoverageWarning();
+        warning.setMessage("Average test coverage across all Apex Classes and Triggers is " + (100 * covered / total)
+                + "%, at least " + required + "% test coverage is required.");
+        return warning;
+    }
+
+    private static boolean below(long covered, long total, int required) {
+        return total > 0 && covered * 100 < (long) required * total;
+    }
+
+    private static void count(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count != null ? count + 1 : 1);
+    }
+
+    private static String qualified(String namespace, String name) {
+        return (namespace != null && namespace.length() > 0 ? namespace + "." : "") + name;
+    }
+}
@@ -0,0 +1,114 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.ws.ConnectionException;
+import org.apache.tools.ant.Project;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The logged in Metadata API connections of a build, so that tasks run one after the other
+ * against the same org share one login.
+ * <p>
+ * The cache is kept as a reference of the Ant project and is keyed by username and server URL.
+ * A session is not checked when it is handed out; instead a {@link SessionMetadataConnection}
+ * logs in again if the server reports that the session is no longer valid.
+ */
+public class SessionCache {
+
+    public static final String REFERENCE = "sfdeploy.sessions";
+
+    /**
+     * Logs in to the org, done by the task that needs the connection.
+     */
+    public interface Login {
+        MetadataConnection login() throws ConnectionException;
+    }
+
+    private static class Session {
+        private MetadataConnection connection;
+    }
+
+    private Map<String, Session> sessions = new HashMap<String, Session>();
+    private int logins;
+    private int reuses;
+
+    /**
+     * The cache of the project, created the first time it is asked for.
+     */
+    public static SessionCache of(Project project) {
+        synchronized (project) {
+            Object cache = project.getReference(REFERENCE);
+            if (!(cache instanceof SessionCache)) {
+                cache = new SessionCache();
+                project.addReference(REFERENCE, cache);
+            }
+            return (SessionCache) cache;
+        }
+    }
+
+    /**
+     * A connection for the user that logs in again when its session has expired.
+     * Only the first request for a user and server URL logs in.
+     */
+    public MetadataConnection connection(String username, String serverUrl, Login login) throws ConnectionException {
+        Session session = session(username, serverUrl);
+        MetadataConnection connection;
+        // Locked per session so different orgs can log in at the same time
+        synchronized (session) {
+            if (session.connection == null) {
+                session.connection = login.login();
+                count(true);
+            } else {
+                count(false);
+            }
+            connection = session.connection;
+        }
+        return new SessionMetadataConnection(this, username, serverUrl, connection, login);
+    }
+
+    /**
+     * Log in again unless another task already has since the expired connection was handed out.
+     */
+    MetadataConnection renew(String username, String serverUrl, MetadataConnection expired, Login login)
+            throws ConnectionException {
+        Session session = session(username, serverUrl);
+        synchronized (session) {
+            if (session.connection == null || session.connection == expired) {
+                session.connection = login.login();
+                count(true);
+            }
+            return session.connection;
+        }
+    }
+
+    public synchronized int getLogins() {
+        return logins;
+    }
+
+    /**
+     * The number of connections handed out without logging in.
+     */
+    public synchronized int getReuses() {
+        return reuses;
+    }
+
+    private synchronized Session session(String username, String serverUrl) {
+        String key = username + "\t" + (serverUrl != null ? serverUrl : "");
+        Session session = sessions.get(key);
+        if (session == null) {
+            session = new Session();
+            sessions.put(key, session);
+        }
+        return session;
+    }
+
+    private synchronized void count(boolean login) {
+        if (login) {
+            logins++;
+        } else {
+            reuses++;
+        }
+    }
+}
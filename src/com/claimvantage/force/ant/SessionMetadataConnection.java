@@ -0,0 +1,93 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.AsyncResult;
+import com.sforce.soap.metadata.CancelDeployResult;
+import com.sforce.soap.metadata.DeployOptions;
+import com.sforce.soap.metadata.DeployResult;
+import com.sforce.soap.metadata.MetadataConnection;
+import com.sforce.ws.ConnectionException;
+import com.sforce.ws.SoapFaultException;
+
+/**
+ * MetadataConnection from a {@link SessionCache} that logs in again and repeats the call
+ * once if the server rejects the session, e.g. because it has timed out since an earlier task used it.
+ * <p>
+ * A rejected call has not been acted on by the server so it is safe to repeat. Every other call
+ * goes straight to the logged in connection, and the headers set on it are carried over to a new login.
+ */
+public class SessionMetadataConnection extends ForwardingMetadataConnection {
+
+    private static final String INVALID_SESSION = "INVALID_SESSION_ID";
+
+    private SessionCache cache;
+    private String username;
+    private String serverUrl;
+    private SessionCache.Login login;
+
+    SessionMetadataConnection(SessionCache cache, String username, String serverUrl, MetadataConnection delegate,
+            SessionCache.Login login) throws ConnectionException {
+        super(delegate);
+        this.cache = cache;
+        this.username = username;
+        this.serverUrl = serverUrl;
+        this.login = login;
+    }
+
+    public DeployResult checkDeployStatus(String asyncProcessId, boolean includeDetails) throws ConnectionException {
+        try {
+            return delegate.checkDeployStatus(asyncProcessId, includeDetails);
+        } catch (SoapFaultException e) {
+            renew(e);
+            return delegate.checkDeployStatus(asyncProcessId, includeDetails);
+        }
+    }
+
+    public AsyncResult deploy(byte[] zipFile, DeployOptions deployOptions) throws ConnectionException {
+        try {
+            return delegate.deploy(zipFile, deployOptions);
+        } catch (SoapFaultException e) {
+            renew(e);
+            return delegate.deploy(zipFile, deployOptions);
+        }
+    }
+
+    public String deployRecentValidation(String validationId) throws ConnectionException {
+        try {
+            return delegate.deployRecentValidation(validationId);
+        } catch (SoapFaultException e) {
+            renew(e);
+            return delegate.deployRecentValidation(validationId);
+        }
+    }
+
+    public CancelDeployResult cancelDeploy(String asyncProcessId) throws ConnectionException {
+        try {
+            return delegate.cancelDeploy(asyncProcessId);
+        } catch (SoapFaultException e) {
+            renew(e);
+            return delegate.cancelDeploy(asyncProcessId);
+        }
+    }
+
+    private synchronized void renew(SoapFaultException e) throws ConnectionException {
+        if (e.getFaultCode() == null || !INVALID_SESSION.equals(e.getFaultCode().getLocalPart())) {
+            throw e;
+        }
+        MetadataConnection expired = delegate;
+        delegate = cache.renew(username, serverUrl, expired, login);
+        if (delegate != expired) {
+            if (expired.getDebuggingHeader() != null) {
+                delegate.__setDebuggingHeader(expired.getDebuggingHeader());
+            }
+            if (expired.getDebuggingInfo() != null) {
+                delegate.__setDebuggingInfo(expired.getDebuggingInfo());
+            }
+            if (expired.getCallOptions() != null) {
+                delegate.__setCallOptions(expired.getCallOptions());
+            }
+            if (expired.getAllOrNoneHeader() != null) {
+                delegate.__setAllOrNoneHeader(expired.getAllOrNoneHeader());
+            }
+        }
+    }
+}
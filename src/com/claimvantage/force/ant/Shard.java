@@ -0,0 +1,44 @@
+package com.claimvantage.force.ant;
+
+/**
+ * An additional org that a share of the tests can be run in, used by a nested shard element.
+ */
+public class Shard {
+
+    private String username;
+    private String password;
+    private String serverurl;
+    private String sessionid;
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    public String getServerurl() {
+        return serverurl;
+    }
+
+    public void setServerurl(String serverurl) {
+        this.serverurl = serverurl;
+    }
+
+    public String getSessionid() {
+        return sessionid;
+    }
+
+    public void setSessionid(String sessionid) {
+        this.sessionid = sessionid;
+    }
+}
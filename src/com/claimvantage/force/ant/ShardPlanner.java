@@ -0,0 +1,84 @@
+package com.claimvantage.force.ant;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Splits a list of test classes into shards of roughly equal total duration.
+ * <p>
+ * Uses the longest processing time first heuristic: the tests are taken longest first and each is
+ * given to the shard with the least work so far. Tests with no recorded duration are assumed to take
+ * the median of the known durations, so with no history at all the shards get even counts.
+ */
+public class ShardPlanner {
+
+    private ShardPlanner() {
+    }
+
+    /**
+     * @param tests the test class names
+     * @param durations seconds per lower case test class name, may be empty
+     * @param shards the number of shards
+     * @return one list of test names per shard, some may be empty if there are fewer tests than shards
+     */
+    public static List<List<String>> plan(List<String> tests, final Map<String, Double> durations, int shards) {
+        final double unknown = median(new ArrayList<Double>(durations.values()));
+        List<String> sorted = new ArrayList<String>(tests);
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return Double.compare(duration(b, durations, unknown), duration(a, durations, unknown));
+            }
+        });
+
+        List<List<String>> plan = new ArrayList<List<String>>(shards);
+        PriorityQueue<Load> loads = new PriorityQueue<Load>(shards);
+        for (int i = 0; i < shards; i++) {
+            plan.add(new ArrayList<String>());
+            loads.add(new Load(i));
+        }
+        for (String test : sorted) {
+            Load load = loads.poll();
+            plan.get(load.shard).add(test);
+            load.seconds += duration(test, durations, unknown);
+            load.count++;
+            loads.add(load);
+        }
+        return plan;
+    }
+
+    private static double duration(String test, Map<String, Double> durations, double unknown) {
+        Double seconds = durations.get(test.toLowerCase());
+        return seconds != null ? seconds : unknown;
+    }
+
+    private static double median(List<Double> values) {
+        if (values.isEmpty()) {
+            return 1.0d;
+        }
+        Collections.sort(values);
+        return values.get(values.size() / 2);
+    }
+
+    // Ties are broken by count then shard number so that equal durations spread evenly
+    private static class Load implements Comparable<Load> {
+        private int shard;
+        private double seconds;
+        private int count;
+
+        private Load(int shard) {
+            this.shard = shard;
+        }
+
+        public int compareTo(Load other) {
+            int c = Double.compare(seconds, other.seconds);
+            if (c == 0) {
+                c = count - other.count;
+            }
+            return c != 0 ? c : shard - other.shard;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.claimvantage.force.ant;
+
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Identifies Apex test classes by their content (an @isTest annotation or the testMethod keyword)
+ * rather than by their name.
+ * <p>
+ * The answer for each file is persisted keyed by path, size and modification time so unchanged
+ * files are never read again. Files that do have to be read are read in parallel.
+ */
+public class TestDiscovery {
+
+    private static final String HEADER = "# apex test discovery v1";
+    private static final String SEPARATOR = "\t";
+    // Comments and string literals are matched by the first group so that markers inside them are skipped.
+    // They are written as unrolled loops with possessive quantifiers so long ones don't overflow the stack.
+    private static final Pattern TEST_MARKER = Pattern.compile(
+            "(//[^\\n]*|/\\*[^*]*+\\*++(?:[^/*][^*]*+\\*++)*+/|'[^'\\\\]*+(?:\\\\.[^'\\\\]*+)*+')"
+            + "|(@\\s*istest\\b|\\btestmethod\\b)",
+            Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private File cacheFile;
+    private int threads;
+    private int read;
+
+    public TestDiscovery(File cacheFile, int threads) {
+        this.cacheFile = cacheFile;
+        this.threads = threads;
+    }
+
+    /**
+     * Returns those of the given class files that contain tests and updates the persisted cache.
+     */
+    public Set<File> testClasses(Collection<File> candidates) {
+        Map<String, Entry> previous = load();
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        List<File> toRead = new ArrayList<File>();
+        for (File candidate : candidates) {
+            String path = candidate.getAbsolutePath();
+            Entry entry = previous.get(path);
+            if (entry != null && entry.lastModified == candidate.lastModified() && entry.length == candidate.length()) {
+                entries.put(path, entry);
+            } else {
+                toRead.add(candidate);
+            }
+        }
+        read = toRead.size();
+        for (Entry entry : readAll(toRead)) {
+            entries.put(entry.path, entry);
+        }
+        if (read > 0 || entries.size() != previous.size()) {
+            save(entries);
+        }
+
+        Set<File> tests = new HashSet<File>();
+        for (File candidate : candidates) {
+            if (entries.get(candidate.getAbsolutePath()).test) {
+                tests.add(candidate);
+            }
+        }
+        return tests;
+    }
+
+    /**
+     * The number of files read by the last call, the rest came from the persisted cache.
+     */
+    public int getRead() {
+        return read;
+    }
+
+    private List<Entry> readAll(List<File> files) {
+        List<Entry> entries = new ArrayList<Entry>(files.size());
+        if (files.isEmpty()) {
+            return entries;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, files.size())));
+        try {
+            List<Future<Entry>> futures = new ArrayList<Future<Entry>>(files.size());
+            for (final File file : files) {
+                futures.add(pool.submit(new Callable<Entry>() {
+                    public Entry call() throws IOException {
+                        return read(file);
+                    }
+                }));
+            }
+            for (Future<Entry> future : futures) {
+                entries.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while discovering tests", e);
+        } catch (ExecutionException e) {
+            throw new BuildException("Unable to read Apex class", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return entries;
+    }
+
+    private static Entry read(File file) throws IOException {
+        Entry entry = new Entry();
+        entry.path = file.getAbsolutePath();
+        entry.lastModified = file.lastModified();
+        entry.length = file.length();
+        StringBuilder content = new StringBuilder((int) Math.min(entry.length, Integer.MAX_VALUE));
+        Reader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
+        try {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) != -1) {
+                content.append(buffer, 0, n);
+            }
+        } finally {
+            reader.close();
+        }
+        Matcher matcher = TEST_MARKER.matcher(content);
+        while (!entry.test && matcher.find()) {
+            entry.test = matcher.group(2) != null;
+        }
+        return entry;
+    }
+
+    private Map<String, Entry> load() {
+        Map<String, Entry> loaded = new HashMap<String, Entry>();
+        if (!cacheFile.isFile()) {
+            return loaded;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), "UTF8"));
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    return loaded;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split(SEPARATOR);
+                    if (fields.length == 4) {
+                        Entry entry = new Entry();
+                        entry.path = fields[0];
+                        entry.length = Long.parseLong(fields[1]);
+                        entry.lastModified = Long.parseLong(fields[2]);
+                        entry.test = "1".equals(fields[3]);
+                        loaded.put(entry.path, entry);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            // A damaged cache is just rebuilt
+            loaded.clear();
+        } catch (NumberFormatException e) {
+            loaded.clear();
+        }
+        return loaded;
+    }
+
+    private void save(Map<String, Entry> entries) {
+        File dir = cacheFile.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new BuildException("Failed to create directory '" + dir + "'");
+        }
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cacheFile), "UTF8"));
+            try {
+                writer.write(HEADER + "\n");
+                for (Entry entry : entries.values()) {
+                    writer.write(entry.path + SEPARATOR + entry.length + SEPARATOR + entry.lastModified
+                            + SEPARATOR + (entry.test ? "1" : "0") + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to write test discovery cache " + cacheFile, e);
+        }
+    }
+
+    private static class Entry {
+        private String path;
+        private long length;
+        private long lastModified;
+        private boolean test;
+    }
+}
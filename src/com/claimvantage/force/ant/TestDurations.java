@@ -0,0 +1,109 @@
+package com.claimvantage.force.ant;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the time taken by each test class from the TEST-*.xml files of an earlier run.
+ * <p>
+ * Only the suites that hold the run's tests are read: the single Apex suite, or the per class
+ * suites listed in the index when that was written more recently. Other suites such as the
+ * progress, coverage and history ones repeat or have nothing to do with the test times.
+ */
+public class TestDurations {
+
+    private TestDurations() {
+    }
+
+    /**
+     * @return total seconds per lower case qualified class name, empty if there are no earlier reports
+     */
+    public static Map<String, Double> read(File dir) {
+        final Map<String, Double> durations = new HashMap<String, Double>();
+        List<File> files = dir != null ? suiteFiles(dir) : new ArrayList<File>();
+        if (files.isEmpty()) {
+            return durations;
+        }
+        DefaultHandler handler = new DefaultHandler() {
+            public void startElement(String uri, String localName, String qName, Attributes attributes) {
+                if ("testcase".equals(qName)) {
+                    String classname = attributes.getValue("classname");
+                    String time = attributes.getValue("time");
+                    if (classname != null && time != null) {
+                        try {
+                            String key = classname.toLowerCase();
+                            Double total = durations.get(key);
+                            durations.put(key, (total != null ? total : 0.0d) + Double.parseDouble(time));
+                        } catch (NumberFormatException e) {
+                            // Ignore the odd bad value
+                        }
+                    }
+                }
+            }
+        };
+        try {
+            SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+            for (File file : files) {
+                try {
+                    parser.parse(file, handler);
+                } catch (SAXException e) {
+                    // A damaged report just means less history
+                } catch (IOException e) {
+                    // As above
+                }
+                parser.reset();
+            }
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        } catch (SAXException e) {
+            throw new RuntimeException(e);
+        }
+        return durations;
+    }
+
+    private static List<File> suiteFiles(File dir) {
+        List<File> files = new ArrayList<File>();
+        File single = new File(dir, XmlReport.fileName(XmlReport.SUITE_NAME));
+        File index = new File(dir, XmlReport.INDEX_FILE_NAME);
+        if (index.isFile() && (!single.isFile() || index.lastModified() >= single.lastModified())) {
+            String coverage = XmlReport.fileName(XmlReport.COVERAGE_SUITE_NAME);
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF8"));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        int space = line.indexOf(' ');
+                        String name = space != -1 ? line.substring(0, space) : line;
+                        if (name.startsWith("TEST-") && name.endsWith(".xml") && !name.equals(coverage)) {
+                            File file = new File(dir, name);
+                            if (file.isFile()) {
+                                files.add(file);
+                            }
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // As for a damaged report
+            }
+        } else if (single.isFile()) {
+            files.add(single);
+        }
+        return files;
+    }
+}
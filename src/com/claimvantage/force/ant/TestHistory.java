@@ -0,0 +1,409 @@
+package com.claimvantage.force.ant;
+
+import com.sforce.soap.metadata.RunTestFailure;
+import com.sforce.soap.metadata.RunTestSuccess;
+import com.sforce.soap.metadata.RunTestsResult;
+import org.apache.tools.ant.BuildException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The time and outcome of every test method over the recent runs, kept so that tests that
+ * are getting slower or that pass and fail intermittently can be found.
+ * <p>
+ * The history is a text file that each run appends to. A test's name is written once with a
+ * number that the results then refer to, so a run adds a few bytes per test. When the file
+ * holds half as many runs again as are to be kept it is rewritten with only the most recent
+ * ones, so the cost of a run stays flat. Only the last {@link #WINDOW} results of each test
+ * are held in memory while the file is read. A file that can't be read is started again.
+ */
+public class TestHistory {
+
+    /**
+     * The number of earlier results of a test its median time and flakiness are worked out over.
+     */
+    public static final int WINDOW = 20;
+
+    private static final String HEADER = "# apex test history v1";
+    private static final char SEPARATOR = '\t';
+    private static final char NAME = 'T';
+    private static final char RUN = 'R';
+    private static final char FAILED = 'F';
+    private static final int MIN_SAMPLES = 5;
+    private static final int REGRESSION_FACTOR = 2;
+    private static final int REGRESSION_MIN_MILLIS = 1000;
+    private static final int FLAKY_FLIPS = 3;
+
+    private File historyFile;
+    private int maxRuns;
+    private Map<String, Series> byName = new HashMap<String, Series>();
+    private List<Series> byId = new ArrayList<Series>();
+    private int runs;
+    private boolean restarted;
+
+    public TestHistory(File historyFile, int maxRuns) {
+        this.historyFile = historyFile;
+        this.maxRuns = Math.max(1, maxRuns);
+    }
+
+    /**
+     * Add the run to the history and compare each of its tests with its earlier results.
+     */
+    public Analysis record(RunTestsResult rtr) {
+        boolean loaded = load();
+        List<Series> current = new ArrayList<Series>(rtr.getSuccesses().length + rtr.getFailures().length);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(historyFile, loaded), "UTF8"), 64 * 1024);
+            try {
+                if (!loaded) {
+                    writer.write(HEADER + "\n");
+                }
+                writer.write(RUN + "" + SEPARATOR + System.currentTimeMillis() + "\n");
+                for (RunTestSuccess success : rtr.getSuccesses()) {
+                    current.add(append(writer, name(success.getNamespace(), success.getName(), success.getMethodName()),
+                            success.getTime(), false));
+                }
+                for (RunTestFailure failure : rtr.getFailures()) {
+                    current.add(append(writer, name(failure.getNamespace(), failure.getName(), failure.getMethodName()),
+                            failure.getTime(), true));
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to write test history " + historyFile, e);
+        }
+        runs++;
+        if (runs > maxRuns + maxRuns / 2) {
+            compact();
+        }
+        return new Analysis(current, runs);
+    }
+
+    /**
+     * True if the existing history could not be read so the recorded run started a new one.
+     */
+    public boolean isRestarted() {
+        return restarted;
+    }
+
+    /**
+     * What a run's tests look like against their history.
+     */
+    public static class Analysis {
+
+        private List<Series> current;
+        private int runs;
+
+        private Analysis(List<Series> current, int runs) {
+            this.current = current;
+            this.runs = runs;
+        }
+
+        /**
+         * The number of runs in the history including this one.
+         */
+        public int getRuns() {
+            return runs;
+        }
+
+        /**
+         * The slowest tests of this run, slowest first.
+         */
+        public List<Trend> getSlowest(int limit) {
+            List<Trend> trends = trends(false, false);
+            Collections.sort(trends, new Comparator<Trend>() {
+                public int compare(Trend a, Trend b) {
+                    return a.millis != b.millis ? (a.millis > b.millis ? -1 : 1) : a.name.compareTo(b.name);
+                }
+            });
+            return trends.subList(0, Math.min(limit, trends.size()));
+        }
+
+        /**
+         * Tests that took more than twice (and at least a second longer than) their median time
+         * over their earlier results, biggest increase first.
+         */
+        public List<Trend> getRegressions() {
+            List<Trend> trends = trends(true, false);
+            Collections.sort(trends, new Comparator<Trend>() {
+                public int compare(Trend a, Trend b) {
+                    long x = a.millis - a.medianMillis;
+                    long y = b.millis - b.medianMillis;
+                    return x != y ? (x > y ? -1 : 1) : a.name.compareTo(b.name);
+                }
+            });
+            return trends;
+        }
+
+        /**
+         * Tests that have gone from passing to failing or back at least three times in their recent results.
+         */
+        public List<Trend> getFlaky() {
+            List<Trend> trends = trends(false, true);
+            Collections.sort(trends, new Comparator<Trend>() {
+                public int compare(Trend a, Trend b) {
+                    return a.name.compareTo(b.name);
+                }
+            });
+            return trends;
+        }
+
+        private List<Trend> trends(boolean regressions, boolean flaky) {
+            List<Trend> trends = new ArrayList<Trend>();
+            for (Series series : current) {
+                Trend trend = series.trend();
+                if (regressions && !(trend.medianMillis >= 0
+                        && trend.millis > REGRESSION_FACTOR * trend.medianMillis
+                        && trend.millis - trend.medianMillis >= REGRESSION_MIN_MILLIS)) {
+                    continue;
+                }
+                if (flaky && trend.flips < FLAKY_FLIPS) {
+                    continue;
+                }
+                trends.add(trend);
+            }
+            return trends;
+        }
+    }
+
+    /**
+     * One test of the run.
+     */
+    public static class Trend {
+
+        private String name;
+        private int millis;
+        private int medianMillis;
+        private String outcomes;
+        private int flips;
+
+        /**
+         * Namespace, class and method.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public int getMillis() {
+            return millis;
+        }
+
+        /**
+         * The median of the earlier times or -1 if there are too few of them.
+         */
+        public int getMedianMillis() {
+            return medianMillis;
+        }
+
+        /**
+         * The recent results oldest first, P for a pass and F for a failure.
+         */
+        public String getOutcomes() {
+            return outcomes;
+        }
+    }
+
+    // The most recent results of one test in a ring buffer
+    private static class Series {
+
+        private String name;
+        private int id;
+        private int lastRun = -1;
+        private int[] millis = new int[WINDOW + 1];
+        private boolean[] failed = new boolean[WINDOW + 1];
+        private int count;
+
+        private Series(String name, int id) {
+            this.name = name;
+            this.id = id;
+        }
+
+        private void add(int time, boolean failure) {
+            millis[count % millis.length] = time;
+            failed[count % failed.length] = failure;
+            count++;
+        }
+
+        // The latest result against the ones before it
+        private Trend trend() {
+            int n = Math.min(count, millis.length);
+            int[] earlier = new int[n - 1];
+            StringBuilder outcomes = new StringBuilder(n);
+            int flips = 0;
+            for (int i = 0; i < n; i++) {
+                int index = (count - n + i) % millis.length;
+                if (i < n - 1) {
+                    earlier[i] = millis[index];
+                }
+                outcomes.append(failed[index] ? 'F' : 'P');
+                if (i > 0 && outcomes.charAt(i) != outcomes.charAt(i - 1)) {
+                    flips++;
+                }
+            }
+            Trend trend = new Trend();
+            trend.name = name;
+            trend.millis = millis[(count - 1) % millis.length];
+            trend.outcomes = outcomes.toString();
+            trend.flips = flips;
+            if (earlier.length >= MIN_SAMPLES) {
+                Arrays.sort(earlier);
+                trend.medianMillis = earlier.length % 2 == 1
+                        ? earlier[earlier.length / 2]
+                        : (earlier[earlier.length / 2 - 1] + earlier[earlier.length / 2]) / 2;
+            } else {
+                trend.medianMillis = -1;
+            }
+            return trend;
+        }
+    }
+
+    private Series append(Writer writer, String name, double time, boolean failure) throws IOException {
+        Series series = byName.get(name);
+        if (series == null) {
+            series = new Series(name, byId.size());
+            byId.add(series);
+            byName.put(name, series);
+            writer.write(NAME + "" + SEPARATOR + series.id + SEPARATOR + name + "\n");
+        }
+        int millis = (int) Math.min(Integer.MAX_VALUE, Math.round(time));
+        writer.write(series.id + "" + SEPARATOR + millis + (failure ? SEPARATOR + "" + FAILED : "") + "\n");
+        series.add(millis, failure);
+        series.lastRun = runs;
+        return series;
+    }
+
+    // False if there is no usable history so a new file should be started
+    private boolean load() {
+        if (!historyFile.isFile()) {
+            File dir = historyFile.getAbsoluteFile().getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new BuildException("Failed to create directory '" + dir + "'");
+            }
+            return false;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(historyFile), "UTF8"), 64 * 1024);
+            try {
+                if (!HEADER.equals(reader.readLine())) {
+                    restarted = true;
+                    return false;
+                }
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.length() == 0) {
+                        continue;
+                    }
+                    char first = line.charAt(0);
+                    if (first == RUN) {
+                        runs++;
+                    } else if (first == NAME) {
+                        int tab = line.indexOf(SEPARATOR, 2);
+                        int id = Integer.parseInt(line.substring(2, tab));
+                        Series series = new Series(line.substring(tab + 1), id);
+                        while (byId.size() <= id) {
+                            byId.add(null);
+                        }
+                        byId.set(id, series);
+                        byName.put(series.name, series);
+                    } else {
+                        int tab = line.indexOf(SEPARATOR);
+                        int end = line.indexOf(SEPARATOR, tab + 1);
+                        Series series = byId.get(Integer.parseInt(line.substring(0, tab)));
+                        series.add(Integer.parseInt(line.substring(tab + 1, end == -1 ? line.length() : end)), end != -1);
+                        series.lastRun = runs - 1;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new BuildException("Unable to read test history " + historyFile, e);
+        } catch (RuntimeException e) {
+            // A damaged line, so the history is started again
+            byName.clear();
+            byId.clear();
+            runs = 0;
+            restarted = true;
+            return false;
+        }
+        return true;
+    }
+
+    // Keeps the last maxRuns runs and the names of the tests in them; ids are unchanged
+    private void compact() {
+        int firstKept = runs - maxRuns;
+        File compacted = new File(historyFile.getPath() + ".tmp");
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(compacted), "UTF8"), 64 * 1024);
+            try {
+                writer.write(HEADER + "\n");
+                for (Series series : byId) {
+                    if (series != null && series.lastRun >= firstKept) {
+                        writer.write(NAME + "" + SEPARATOR + series.id + SEPARATOR + series.name + "\n");
+                    }
+                }
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new FileInputStream(historyFile), "UTF8"), 64 * 1024);
+                try {
+                    reader.readLine();
+                    int run = -1;
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.length() > 0 && line.charAt(0) == RUN) {
+                            run++;
+                        }
+                        if (run >= firstKept && (line.length() == 0 || line.charAt(0) != NAME)) {
+                            writer.write(line);
+                            writer.write("\n");
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            compacted.delete();
+            throw new BuildException("Unable to compact test history " + historyFile, e);
+        }
+        try {
+            try {
+                Files.move(compacted.toPath(), historyFile.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(compacted.toPath(), historyFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            compacted.delete();
+            throw new BuildException("Unable to replace test history " + historyFile + " with " + compacted, e);
+        }
+        runs = maxRuns;
+    }
+
+    private static String name(String namespace, String className, String methodName) {
+        return (namespace != null && namespace.length() > 0 ? namespace + "." : "") + className + "." + methodName;
+    }
+}
@@ -8,13 +8,8 @@ import com.sforce.soap.metadata.RunTestsResult;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.util.DOMElementWriter;
 import org.apache.tools.ant.util.DateUtils;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Text;
+import org.apache.tools.ant.util.StringUtils;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -22,13 +17,30 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
  * Generate JUnit XML output for an Apex test run.
  * Formatting from org.apache.tools.ant.taskdefs.optional.junit.XMLJUnitResultFormatter.
+ * <p>
+ * Each element is streamed straight to the file as the results are walked rather than
+ * building a DOM first, so memory use does not grow with the number of tests.
+ * The output is the same as DOMElementWriter produces.
  */
 public class XmlReport {
 
@@ -50,54 +62,253 @@ public class XmlReport {
     private static final String TIMESTAMP = "timestamp";
     
     // Other stuff
-    private static final String SUITE_NAME = "Apex";
+    static final String SUITE_NAME = "Apex";
+    static final String COVERAGE_SUITE_NAME = "ApexCodeCoverage";
+    private static final String HISTORY_SUITE_NAME = "ApexTestHistory";
+    static final String INDEX_FILE_NAME = "apex-test-index.txt";
     private static final long MS_PER_SECOND = 1000;
+    private static final String INDENT = "  ";
+    private static final String LINE_SEP = StringUtils.LINE_SEP;
+    private static final int BUFFER_SIZE = 64 * 1024;
     
     private File toDir;
-    private Element rootElement;
+    private Writer writer;
+    private DOMElementWriter encoder = new DOMElementWriter();
 
     public XmlReport(File toDir) {
         this.toDir = toDir;
     }
 
     public void report(RunTestsResult results) {
+        writeSuite(
+                SUITE_NAME,
+                results.getNumTestsRun() - results.getNumFailures(),
+                results.getNumFailures(),
+                results.getTotalTime(),
+                Arrays.asList(results.getSuccesses()),
+                Arrays.asList(results.getFailures()),
+                results
+                );
+    }
+
+    /**
+     * Write a suite file with the given name holding just the given tests and no coverage.
+     */
+    public void report(String suiteName, Collection<RunTestSuccess> successes, Collection<RunTestFailure> failures) {
+        double time = 0.0d;
+        for (RunTestSuccess success : successes) {
+            time += success.getTime();
+        }
+        for (RunTestFailure failure : failures) {
+            time += failure.getTime();
+        }
+        writeSuite(suiteName, successes.size(), failures.size(), time, successes, failures, null);
+    }
+
+    /**
+     * Add the run to the test history and write a suite whose output lists the slowest tests,
+     * the tests that have become much slower and the tests that keep changing between passing and failing.
+     */
+    public void reportHistory(TestHistory history, RunTestsResult results, int slowest) {
+        TestHistory.Analysis analysis = history.record(results);
+        writer = createWriter(HISTORY_SUITE_NAME);
+        try {
+            try {
+                startTestSuiteXml(HISTORY_SUITE_NAME, 1, 0, 0, 0.0d);
+                reportTestXml(
+                        null,
+                        "ApexTestHistoryTest",
+                        "testHistory",
+                        0.0d,
+                        null,
+                        null,
+                        null
+                        );
+                reportSystemOut(historySummary(analysis, slowest));
+                endTestSuiteXml();
+            } finally {
+                writer.flush();
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException exc) {
+            throw new BuildException("Unable to write log file", exc);
+        }
+    }
 
-        startTestSuiteXml();
+    /**
+     * Write one suite file per Apex class (named by namespace plus class) plus a separate
+     * suite for the coverage results, using at most the given number of threads.
+     * An index file listing the suite files is written once all of them are complete.
+     */
+    public void reportPerClass(final RunTestsResult results, int threads) {
+        final Map<String, ClassResults> classes = new TreeMap<String, ClassResults>();
         for (RunTestSuccess success : results.getSuccesses()) {
-            reportTestXml(
-                    success.getNamespace(),
-                    success.getName(),
-                    success.getMethodName(),
-                    success.getTime(),
-                    null,
-                    null,
-                    null
-                    );
+            classResults(classes, success.getNamespace(), success.getName()).add(success);
         }
         for (RunTestFailure failure : results.getFailures()) {
-            reportTestXml(
-                    failure.getNamespace(),
-                    failure.getName(),
-                    failure.getMethodName(),
-                    failure.getTime(),
-                    failure.getType(),
-                    failure.getMessage(),
-                    failure.getStackTrace()
-                    );
+            classResults(classes, failure.getNamespace(), failure.getName()).add(failure);
+        }
+
+        createToDir();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, classes.size() + 1)));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(classes.size() + 1);
+            for (final Map.Entry<String, ClassResults> entry : classes.entrySet()) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    public Void call() {
+                        ClassResults cr = entry.getValue();
+                        new XmlReport(toDir).writeSuite(
+                                entry.getKey(),
+                                cr.successes.size(),
+                                cr.failures.size(),
+                                cr.time,
+                                cr.successes,
+                                cr.failures,
+                                null
+                                );
+                        return null;
+                    }
+                }));
+            }
+            futures.add(pool.submit(new Callable<Void>() {
+                public Void call() {
+                    // The one coverage test fails when there are coverage warnings
+                    int failures = results.getCodeCoverageWarnings() != null
+                            && results.getCodeCoverageWarnings().length > 0 ? 1 : 0;
+                    new XmlReport(toDir).writeSuite(
+                            COVERAGE_SUITE_NAME,
+                            1 - failures,
+                            failures,
+                            0.0d,
+                            Collections.<RunTestSuccess>emptyList(),
+                            Collections.<RunTestFailure>emptyList(),
+                            results
+                            );
+                    return null;
+                }
+            }));
+            for (Future<?> future : futures) {
+                await(future);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        writeIndex(classes, results);
+    }
+
+    private void writeSuite(String suiteName, int passes, int failures, double time,
+            Collection<RunTestSuccess> successes, Collection<RunTestFailure> failureResults,
+            RunTestsResult coverage) {
+        writer = createWriter(suiteName);
+        try {
+            try {
+                startTestSuiteXml(suiteName, passes, 0, failures, time);
+                for (RunTestSuccess success : successes) {
+                    reportTestXml(
+                            success.getNamespace(),
+                            success.getName(),
+                            success.getMethodName(),
+                            success.getTime(),
+                            null,
+                            null,
+                            null
+                            );
+                }
+                for (RunTestFailure failure : failureResults) {
+                    reportTestXml(
+                            failure.getNamespace(),
+                            failure.getName(),
+                            failure.getMethodName(),
+                            failure.getTime(),
+                            failure.getType(),
+                            failure.getMessage(),
+                            failure.getStackTrace()
+                            );
+                }
+                if (coverage != null) {
+                    reportCoverage(coverage);
+                }
+                endTestSuiteXml();
+            } finally {
+                writer.flush();
+                writer.close();
+                writer = null;
+            }
+        } catch (IOException exc) {
+            throw new BuildException("Unable to write log file", exc);
+        }
+    }
+
+    private void writeIndex(Map<String, ClassResults> classes, RunTestsResult results) {
+        try {
+            Writer index = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(toDir, INDEX_FILE_NAME)), "UTF8"));
+            try {
+                index.write("Suites: " + (classes.size() + 1)
+                        + ", tests: " + results.getNumTestsRun()
+                        + ", failures: " + results.getNumFailures()
+                        + ", time: " + (results.getTotalTime() / MS_PER_SECOND) + "\n");
+                for (Map.Entry<String, ClassResults> entry : classes.entrySet()) {
+                    ClassResults cr = entry.getValue();
+                    index.write(fileName(entry.getKey())
+                            + " tests=" + (cr.successes.size() + cr.failures.size())
+                            + " failures=" + cr.failures.size()
+                            + " time=" + (cr.time / MS_PER_SECOND) + "\n");
+                }
+                index.write(fileName(COVERAGE_SUITE_NAME) + "\n");
+            } finally {
+                index.close();
+            }
+        } catch (IOException exc) {
+            throw new BuildException("Unable to write log file", exc);
+        }
+    }
+
+    private static ClassResults classResults(Map<String, ClassResults> classes, String namespace, String className) {
+        String qualifiedClassName = (namespace != null && namespace.length() > 0 ? namespace + "." : "") + className;
+        ClassResults cr = classes.get(qualifiedClassName);
+        if (cr == null) {
+            cr = new ClassResults();
+            classes.put(qualifiedClassName, cr);
+        }
+        return cr;
+    }
+
+    private static void await(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while writing reports", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new BuildException(e.getCause());
+        }
+    }
+
+    // The results for one Apex class in the order they were returned
+    private static class ClassResults {
+        private List<RunTestSuccess> successes = new ArrayList<RunTestSuccess>();
+        private List<RunTestFailure> failures = new ArrayList<RunTestFailure>();
+        private double time;
+
+        private void add(RunTestSuccess success) {
+            successes.add(success);
+            time += success.getTime();
+        }
+
+        private void add(RunTestFailure failure) {
+            failures.add(failure);
+            time += failure.getTime();
         }
-        reportCoverage(results);
-        endTestSuiteXml(
-                  results.getNumTestsRun() - results.getNumFailures(),
-                  0,
-                  results.getNumFailures(),
-                  results.getTotalTime()
-                  );
-        write();
     }
     
     // Output one "test" that shows coverage results.
     // Might be a better output format (e.g. Clover?) but that would take more research.
-    private void reportCoverage(RunTestsResult results) {
+    private void reportCoverage(RunTestsResult results) throws IOException {
         final String name = "ApexCodeCoverageTest";
         final String method = "testCoverage";
         CodeCoverageWarning[] warnings = results.getCodeCoverageWarnings();
@@ -136,7 +347,7 @@ public class XmlReport {
     }
     
     // These figures don't exactly agree with the web UI, don't know why
-    private String coverageSummary(RunTestsResult results) {
+    String coverageSummary(RunTestsResult results) {
          int allCovered = 0;
          int allTotal = 0;
          StringBuilder sb = new StringBuilder(4096);
@@ -166,85 +377,134 @@ public class XmlReport {
          }
     }
     
-    private void startTestSuiteXml() {
-        rootElement = createDocument().createElement(TESTSUITE);
-        rootElement.setAttribute(ATTR_NAME, SUITE_NAME);
-        rootElement.setAttribute(TIMESTAMP, DateUtils.format(new Date(), DateUtils.ISO8601_DATETIME_PATTERN));
-        rootElement.appendChild(rootElement.getOwnerDocument().createElement(PROPERTIES));
+    private String historySummary(TestHistory.Analysis analysis, int slowest) {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("Runs in history: ").append(analysis.getRuns()).append("\n");
+        sb.append("\nSlowest tests:\n");
+        for (TestHistory.Trend trend : analysis.getSlowest(slowest)) {
+            sb.append(trend.getName()).append(": ").append(trend.getMillis()).append(" ms");
+            if (trend.getMedianMillis() >= 0) {
+                sb.append(" (median ").append(trend.getMedianMillis()).append(" ms)");
+            }
+            sb.append("\n");
+        }
+        List<TestHistory.Trend> regressions = analysis.getRegressions();
+        sb.append("\nSlower than the median of their last ").append(TestHistory.WINDOW).append(" runs: ")
+                .append(regressions.size()).append("\n");
+        for (TestHistory.Trend trend : regressions) {
+            sb.append(trend.getName()).append(": ").append(trend.getMillis()).append(" ms, median ")
+                    .append(trend.getMedianMillis()).append(" ms\n");
+        }
+        List<TestHistory.Trend> flaky = analysis.getFlaky();
+        sb.append("\nPassing and failing intermittently: ").append(flaky.size()).append("\n");
+        for (TestHistory.Trend trend : flaky) {
+            sb.append(trend.getName()).append(": ").append(trend.getOutcomes()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    private void startTestSuiteXml(String suiteName, int passes, int errors, int failures, double time)
+            throws IOException {
+        // Attributes in the alphabetical order DOMElementWriter used to emit them in
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+        writer.write("<" + TESTSUITE);
+        writeAttribute(ATTR_ERRORS, "" + errors);
+        writeAttribute(ATTR_FAILURES, "" + failures);
+        writeAttribute(ATTR_NAME, suiteName);
+        writeAttribute(ATTR_TESTS, "" + (passes + errors + failures));
+        writeAttribute(ATTR_TIME, String.valueOf(time / MS_PER_SECOND));
+        writeAttribute(TIMESTAMP, DateUtils.format(new Date(), DateUtils.ISO8601_DATETIME_PATTERN));
+        writer.write(">");
+        writer.write(LINE_SEP);
+        writeEmptyElement(PROPERTIES);
     }
 
     private void reportTestXml(String namespace, String className, String methodName,
-            double time, String type, String message, String stacktrace) {
-        Element currentTest = rootElement.getOwnerDocument().createElement(TESTCASE);
-        currentTest.setAttribute(ATTR_NAME, methodName);
+            double time, String type, String message, String stacktrace) throws IOException {
         String qualifiedClassName = (namespace != null && namespace.length() > 0 ? namespace + "." : "") + className;
-        currentTest.setAttribute(ATTR_CLASSNAME, qualifiedClassName);
-        currentTest.setAttribute(ATTR_TIME, String.valueOf(time / MS_PER_SECOND));
+        writer.write(INDENT + "<" + TESTCASE);
+        writeAttribute(ATTR_CLASSNAME, qualifiedClassName);
+        writeAttribute(ATTR_NAME, methodName);
+        writeAttribute(ATTR_TIME, String.valueOf(time / MS_PER_SECOND));
         if (type != null || message != null || stacktrace != null) {
-            Element nested = rootElement.getOwnerDocument().createElement(FAILURE);
-            nested.setAttribute(ATTR_TYPE, type);
-            nested.setAttribute(ATTR_MESSAGE, message);
+            writer.write(">");
+            writer.write(LINE_SEP);
+            writer.write(INDENT + INDENT + "<" + FAILURE);
+            writeAttribute(ATTR_MESSAGE, message);
+            writeAttribute(ATTR_TYPE, type);
             if (stacktrace != null) {
-                Text trace = rootElement.getOwnerDocument().createTextNode(stacktrace);
-                nested.appendChild(trace);
+                writer.write(">");
+                writer.write(encoder.encode(stacktrace));
+                writer.write("</" + FAILURE + ">");
+                writer.write(LINE_SEP);
+            } else {
+                writer.write(" />");
+                writer.write(LINE_SEP);
             }
-            currentTest.appendChild(nested);
+            writer.write(INDENT + "</" + TESTCASE + ">");
+            writer.write(LINE_SEP);
+        } else {
+            writer.write(" />");
+            writer.write(LINE_SEP);
         }
-        rootElement.appendChild(currentTest);
     }
     
-    private void reportSystemOut(String text) {
-        Element systemOut = rootElement.getOwnerDocument().createElement(SYSTEM_OUT);
-        systemOut.appendChild(rootElement.getOwnerDocument().createCDATASection(text));
-        rootElement.appendChild(systemOut);
+    private void reportSystemOut(String text) throws IOException {
+        writer.write(INDENT + "<" + SYSTEM_OUT + "><![CDATA[");
+        encoder.encodedata(writer, text);
+        writer.write("]]></" + SYSTEM_OUT + ">");
+        writer.write(LINE_SEP);
     }
     
-    private void endTestSuiteXml(int passes, int errors, int failures, double time) throws BuildException {
-        rootElement.setAttribute(ATTR_TESTS, "" + (passes + errors + failures));
-        rootElement.setAttribute(ATTR_FAILURES, "" + failures);
-        rootElement.setAttribute(ATTR_ERRORS, "" + errors);
-        rootElement.setAttribute(ATTR_TIME, String.valueOf(time / MS_PER_SECOND));
-        
-        rootElement.appendChild(rootElement.getOwnerDocument().createElement(SYSTEM_OUT));
-        rootElement.appendChild(rootElement.getOwnerDocument().createElement(SYSTEM_ERR));
-    }
-        
-    private void write() {
-        try {
-            Writer writer = new BufferedWriter(new OutputStreamWriter(createOutputStream(), "UTF8"));
-            try {
-                writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
-                (new DOMElementWriter()).write(rootElement, writer, 0, "  ");
-            } finally {
-                writer.flush();
-                writer.close();
-            }
-        } catch (IOException exc) {
-            throw new BuildException("Unable to write log file", exc);
+    private void endTestSuiteXml() throws IOException {
+        writeEmptyElement(SYSTEM_OUT);
+        writeEmptyElement(SYSTEM_ERR);
+        writer.write("</" + TESTSUITE + ">");
+        writer.write(LINE_SEP);
+    }
+
+    private void writeEmptyElement(String name) throws IOException {
+        writer.write(INDENT + "<" + name + " />");
+        writer.write(LINE_SEP);
+    }
+
+    // A null value is written as an empty attribute as the DOM did
+    private void writeAttribute(String name, String value) throws IOException {
+        writer.write(" " + name + "=\"");
+        if (value != null) {
+            writer.write(encoder.encodeAttributeValue(value));
         }
+        writer.write("\"");
     }
 
-    private OutputStream createOutputStream() {
-        if (!toDir.exists()) {
-            boolean result = toDir.mkdirs();
-            if (!result) {
-                throw new RuntimeException("Failed to create directory '" + toDir + "'");
-            }
+    private Writer createWriter(String suiteName) {
+        try {
+            return new BufferedWriter(new OutputStreamWriter(createOutputStream(suiteName), "UTF8"), BUFFER_SIZE);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
         }
-        File file = new File(toDir, "TEST-" + SUITE_NAME + ".xml");
+    }
+
+    private OutputStream createOutputStream(String suiteName) {
+        createToDir();
+        File file = new File(toDir, fileName(suiteName));
         try {
             return new FileOutputStream(file);
         } catch (FileNotFoundException e) {
             throw new RuntimeException(e);
         }
     }
-    
-    private Document createDocument() {
-        try {
-            DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            return builder.newDocument();
-        } catch (ParserConfigurationException e) {
-            throw new RuntimeException(e);
+
+    private void createToDir() {
+        if (!toDir.exists()) {
+            boolean result = toDir.mkdirs();
+            if (!result) {
+                throw new RuntimeException("Failed to create directory '" + toDir + "'");
+            }
         }
     }
+
+    static String fileName(String suiteName) {
+        return "TEST-" + suiteName + ".xml";
+    }
 }
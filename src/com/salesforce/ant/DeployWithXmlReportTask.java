@@ -1,24 +1,56 @@
 package com.salesforce.ant;
 
 import com.claimvantage.force.ant.BatchTest;
+import com.claimvantage.force.ant.CachingMetadataConnection;
+import com.claimvantage.force.ant.CoberturaReport;
+import com.claimvantage.force.ant.CoverageBaseline;
+import com.claimvantage.force.ant.DeltaManifest;
+import com.claimvantage.force.ant.DeltaPackage;
+import com.claimvantage.force.ant.DeployMetrics;
+import com.claimvantage.force.ant.DeployPackager;
+import com.claimvantage.force.ant.DeployPoller;
+import com.claimvantage.force.ant.DeployZip;
+import com.claimvantage.force.ant.FailureReport;
+import com.claimvantage.force.ant.LiveXmlReport;
+import com.claimvantage.force.ant.QuickDeployRegistry;
+import com.claimvantage.force.ant.RunTestsResultMerger;
+import com.claimvantage.force.ant.SessionCache;
+import com.claimvantage.force.ant.Shard;
+import com.claimvantage.force.ant.ShardPlanner;
+import com.claimvantage.force.ant.TestDurations;
+import com.claimvantage.force.ant.TestHistory;
 import com.claimvantage.force.ant.XmlReport;
-import com.sforce.soap.metadata.CodeCoverageWarning;
 import com.sforce.soap.metadata.DeployDetails;
-import com.sforce.soap.metadata.DeployMessage;
+import com.sforce.soap.metadata.DeployOptions;
 import com.sforce.soap.metadata.DeployResult;
-import com.sforce.soap.metadata.FlowCoverageResult;
-import com.sforce.soap.metadata.FlowCoverageWarning;
 import com.sforce.soap.metadata.MetadataConnection;
 import com.sforce.soap.metadata.RunTestFailure;
+import com.sforce.soap.metadata.RunTestSuccess;
 import com.sforce.soap.metadata.RunTestsResult;
+import com.sforce.soap.metadata.TestLevel;
 import com.sforce.ws.ConnectionException;
+import com.sforce.ws.SoapFaultException;
 import org.apache.tools.ant.BuildException;
 import org.apache.tools.ant.Project;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Extension of the salesforce Ant task that converts the structured test result
@@ -26,11 +58,64 @@ import java.util.List;
  * consumed by tools such as Hudson's JUnit report publisher.
  * 
  * Also adds support for batchtest children for identifying test classes by name pattern.
+ * <p>
+ * When shard children are added the tests are split across this org and the shard orgs
+ * (balanced by the durations in the previous report) and run in all of them at once.
+ * <p>
+ * When deltamanifest is set only the components changed since the last successful deploy are deployed.
+ * <p>
+ * The time taken by each phase of the deploy is written to deploy-metrics.prom and deploy-metrics.json
+ * in the junitreportdir.
  */
 public class DeployWithXmlReportTask extends DeployTask {
+
+    private static final String FAILURE_REPORT_NAME = "deploy-failures";
+    private static final String COVERAGE_REGRESSIONS_SUITE_NAME = "ApexCoverageRegressions";
     
     private File junitreportdir;
+    private boolean junitreportperclass;
+    private int junitreportthreads = Runtime.getRuntime().availableProcessors();
+    private boolean junitreportlive;
+    private File coveragereportdir;
+    private LiveXmlReport liveReport;
     private List<BatchTest> batchTests = new ArrayList<BatchTest>();
+    private List<Shard> shards = new ArrayList<Shard>();
+    private boolean adaptivepoll;
+    private long pollminwaitmillis = 1000;
+    private long pollmaxwaitmillis = 60000;
+    private long polltimeoutmillis;
+    private File deltamanifest;
+    private File zipcachedir;
+    private int failuresummarylimit = 100;
+    private DeployMetrics metrics = new DeployMetrics();
+    private long executeStart;
+    private File coveragebaseline;
+    private boolean updatecoveragebaseline;
+    private RunTestsResult testResult;
+    private List<RunTestFailure> coverageRegressions = new ArrayList<RunTestFailure>();
+    private boolean reusesession = true;
+    private String sessionUsername;
+    private String sessionServerUrl;
+    private boolean sessionIdSet;
+    private File quickdeployregistry;
+    private File testhistory;
+    private int testhistoryruns = 100;
+    private int testhistoryslowest = 20;
+
+    // Copies of superclass settings needed when this class does the deploy itself
+    private File deployRoot;
+    private boolean checkonly;
+    private String testLevel;
+    private boolean ignoreWarnings;
+    private boolean rollbackOnError = true;
+    private File zipFile;
+    private boolean allowMissingFiles;
+    private boolean autoUpdatePackage;
+    private boolean singlePackage = true;
+    private boolean purgeOnDelete;
+    private boolean runAllTests;
+    private int maxPoll = 200;
+    private int pollWaitMillis = 10000;
 
 
     public File getJunitreportdir() {
@@ -40,6 +125,217 @@ public class DeployWithXmlReportTask extends DeployTask {
     public void setJunitreportdir(File junitreportdir) {
         this.junitreportdir = junitreportdir;
     }
+
+    public boolean isJunitreportperclass() {
+        return junitreportperclass;
+    }
+
+    /**
+     * When true one report file is written per Apex class instead of a single TEST-Apex.xml.
+     */
+    public void setJunitreportperclass(boolean junitreportperclass) {
+        this.junitreportperclass = junitreportperclass;
+    }
+
+    public int getJunitreportthreads() {
+        return junitreportthreads;
+    }
+
+    /**
+     * The maximum number of threads used to write the per class report files.
+     */
+    public void setJunitreportthreads(int junitreportthreads) {
+        this.junitreportthreads = junitreportthreads;
+    }
+
+    public boolean isJunitreportlive() {
+        return junitreportlive;
+    }
+
+    /**
+     * When true the tests completed so far are written to progress report files while the deploy is running.
+     */
+    public void setJunitreportlive(boolean junitreportlive) {
+        this.junitreportlive = junitreportlive;
+    }
+    
+    public File getCoveragereportdir() {
+        return coveragereportdir;
+    }
+
+    /**
+     * When set a Cobertura format coverage.xml file is written into this directory.
+     */
+    public void setCoveragereportdir(File coveragereportdir) {
+        this.coveragereportdir = coveragereportdir;
+    }
+    
+    public boolean isAdaptivepoll() {
+        return adaptivepoll;
+    }
+
+    /**
+     * When true this task does the deploy itself and polls at intervals that adapt to the deploy's progress.
+     */
+    public void setAdaptivepoll(boolean adaptivepoll) {
+        this.adaptivepoll = adaptivepoll;
+    }
+
+    public long getPollminwaitmillis() {
+        return pollminwaitmillis;
+    }
+
+    public void setPollminwaitmillis(long pollminwaitmillis) {
+        this.pollminwaitmillis = pollminwaitmillis;
+    }
+
+    public long getPollmaxwaitmillis() {
+        return pollmaxwaitmillis;
+    }
+
+    public void setPollmaxwaitmillis(long pollmaxwaitmillis) {
+        this.pollmaxwaitmillis = pollmaxwaitmillis;
+    }
+
+    public long getPolltimeoutmillis() {
+        return polltimeoutmillis;
+    }
+
+    /**
+     * How long to wait for a deploy when polling adaptively, by default maxPoll times pollWaitMillis
+     * (the longest DeployTask itself would wait).
+     */
+    public void setPolltimeoutmillis(long polltimeoutmillis) {
+        this.polltimeoutmillis = polltimeoutmillis;
+    }
+
+    public File getDeltamanifest() {
+        return deltamanifest;
+    }
+
+    /**
+     * When set only the components changed since the last successful deploy are deployed,
+     * using the content hashes kept in this file.
+     */
+    public void setDeltamanifest(File deltamanifest) {
+        this.deltamanifest = deltamanifest;
+    }
+
+    public File getZipcachedir() {
+        return zipcachedir;
+    }
+
+    /**
+     * When set the deploy zip is built in parallel and compressed files are kept in this directory for reuse.
+     */
+    public void setZipcachedir(File zipcachedir) {
+        this.zipcachedir = zipcachedir;
+    }
+
+    public boolean isReusesession() {
+        return reusesession;
+    }
+
+    /**
+     * When true (the default) tasks in the same build that use the same username and server URL share one login.
+     */
+    public void setReusesession(boolean reusesession) {
+        this.reusesession = reusesession;
+    }
+
+    // The credentials are also kept here as the session cache is keyed by them
+
+    public void setUsername(String username) {
+        super.setUsername(username);
+        this.sessionUsername = username;
+    }
+
+    public void setServerURL(String serverURL) {
+        super.setServerURL(serverURL);
+        this.sessionServerUrl = serverURL;
+    }
+
+    public void setSessionId(String sessionId) {
+        super.setSessionId(sessionId);
+        this.sessionIdSet = sessionId != null && sessionId.length() > 0;
+    }
+
+    public File getQuickdeployregistry() {
+        return quickdeployregistry;
+    }
+
+    /**
+     * When set successful check only deploys are recorded in this file, and deploying the same package
+     * to the same org with the same options within 10 days deploys the validation instead of running the tests again.
+     */
+    public void setQuickdeployregistry(File quickdeployregistry) {
+        this.quickdeployregistry = quickdeployregistry;
+    }
+
+    public File getTesthistory() {
+        return testhistory;
+    }
+
+    /**
+     * When set along with junitreportdir the time and outcome of each test is added to this file,
+     * and TEST-ApexTestHistory.xml lists the slowest, slowing and intermittently failing tests.
+     */
+    public void setTesthistory(File testhistory) {
+        this.testhistory = testhistory;
+    }
+
+    public int getTesthistoryruns() {
+        return testhistoryruns;
+    }
+
+    /**
+     * The number of runs kept in the testhistory file.
+     */
+    public void setTesthistoryruns(int testhistoryruns) {
+        this.testhistoryruns = testhistoryruns;
+    }
+
+    public int getTesthistoryslowest() {
+        return testhistoryslowest;
+    }
+
+    public void setTesthistoryslowest(int testhistoryslowest) {
+        this.testhistoryslowest = testhistoryslowest;
+    }
+
+    public File getCoveragebaseline() {
+        return coveragebaseline;
+    }
+
+    /**
+     * When set the build fails if any class or trigger has a lower percentage covered than in this baseline file.
+     */
+    public void setCoveragebaseline(File coveragebaseline) {
+        this.coveragebaseline = coveragebaseline;
+    }
+
+    public boolean isUpdatecoveragebaseline() {
+        return updatecoveragebaseline;
+    }
+
+    /**
+     * When true the coveragebaseline file is replaced by the coverage of a successful run.
+     */
+    public void setUpdatecoveragebaseline(boolean updatecoveragebaseline) {
+        this.updatecoveragebaseline = updatecoveragebaseline;
+    }
+
+    public int getFailuresummarylimit() {
+        return failuresummarylimit;
+    }
+
+    /**
+     * The maximum number of failures listed in the build failure message, the full list is written
+     * to deploy-failures.xml in junitreportdir.
+     */
+    public void setFailuresummarylimit(int failuresummarylimit) {
+        this.failuresummarylimit = failuresummarylimit;
+    }
     
     /**
      * Allows child BatchTest elements to be added that can identify tests by file name pattern.
@@ -50,6 +346,80 @@ public class DeployWithXmlReportTask extends DeployTask {
         return batchTest;
     }
     
+    /**
+     * Allows child Shard elements to be added that identify further orgs to run a share of the tests in.
+     */
+    public Shard createShard() {
+        Shard shard = new Shard();
+        shards.add(shard);
+        return shard;
+    }
+
+    public void setDeployRoot(String deployRoot) {
+        super.setDeployRoot(deployRoot);
+        this.deployRoot = getProject() != null ? getProject().resolveFile(deployRoot) : new File(deployRoot);
+    }
+
+    public void setCheckonly(boolean checkonly) {
+        super.setCheckonly(checkonly);
+        this.checkonly = checkonly;
+    }
+
+    public void setTestLevel(String testLevel) {
+        super.setTestLevel(testLevel);
+        this.testLevel = testLevel;
+    }
+
+    public void setIgnoreWarnings(boolean ignoreWarnings) {
+        super.setIgnoreWarnings(ignoreWarnings);
+        this.ignoreWarnings = ignoreWarnings;
+    }
+
+    public void setRollbackOnError(boolean rollbackOnError) {
+        super.setRollbackOnError(rollbackOnError);
+        this.rollbackOnError = rollbackOnError;
+    }
+
+    public void setZipFile(String zipFile) {
+        super.setZipFile(zipFile);
+        this.zipFile = getProject() != null ? getProject().resolveFile(zipFile) : new File(zipFile);
+    }
+
+    public void setAllowMissingFiles(boolean allowMissingFiles) {
+        super.setAllowMissingFiles(allowMissingFiles);
+        this.allowMissingFiles = allowMissingFiles;
+    }
+
+    public void setAutoUpdatePackage(boolean autoUpdatePackage) {
+        super.setAutoUpdatePackage(autoUpdatePackage);
+        this.autoUpdatePackage = autoUpdatePackage;
+    }
+
+    public void setSinglePackage(boolean singlePackage) {
+        super.setSinglePackage(singlePackage);
+        this.singlePackage = singlePackage;
+    }
+
+    public void setPurgeOnDelete(boolean purgeOnDelete) {
+        super.setPurgeOnDelete(purgeOnDelete);
+        this.purgeOnDelete = purgeOnDelete;
+    }
+
+    public void setRunAllTests(boolean runAllTests) {
+        super.setRunAllTests(runAllTests);
+        this.runAllTests = runAllTests;
+    }
+
+    public void setMaxPoll(int maxPoll) {
+        super.setMaxPoll(maxPoll);
+        this.maxPoll = maxPoll;
+    }
+
+    public void setPollWaitMillis(int pollWaitMillis) {
+        super.setPollWaitMillis(pollWaitMillis);
+        this.pollWaitMillis = pollWaitMillis;
+    }
+    
     /**
      * Returns any runtest items plus any batchtest items.
      */
@@ -58,6 +428,9 @@ public class DeployWithXmlReportTask extends DeployTask {
         List<String> names = new ArrayList<String>();
         names.addAll(Arrays.asList(super.getRunTests()));
         for (BatchTest batchTest : batchTests) {
+            if (batchTest.getChangedfiles() != null && batchTest.getSourcedir() == null && deployRoot != null) {
+                batchTest.setSourcedir(deployRoot);
+            }
             names.addAll(batchTest.getFilenames());
         }
         
@@ -66,117 +439,556 @@ public class DeployWithXmlReportTask extends DeployTask {
         return names.toArray(new String[names.size()]);
     }
 
+    /**
+     * Hands the superclass a caching connection so its status polls can also drive the live report.
+     * The login is shared with earlier tasks of the build when possible.
+     */
+    public MetadataConnection getMetadataConnection() throws ConnectionException {
+        CachingMetadataConnection connection = CachingMetadataConnection.wrap(sessionConnection());
+        if (junitreportlive && junitreportdir != null) {
+            if (liveReport == null) {
+                liveReport = new LiveXmlReport(junitreportdir);
+            }
+            connection.addListener(liveReport);
+        }
+        return connection;
+    }
+
+    // A given session id has nothing to log in with so is used as is
+    private MetadataConnection sessionConnection() throws ConnectionException {
+        if (!reusesession || sessionIdSet || sessionUsername == null || getProject() == null) {
+            return super.getMetadataConnection();
+        }
+        SessionCache cache = SessionCache.of(getProject());
+        int logins = cache.getLogins();
+        MetadataConnection connection = cache.connection(sessionUsername, sessionServerUrl, new SessionCache.Login() {
+            public MetadataConnection login() throws ConnectionException {
+                return DeployWithXmlReportTask.super.getMetadataConnection();
+            }
+        });
+        if (cache.getLogins() == logins) {
+            log("reusing the session of " + sessionUsername + " from an earlier login", Project.MSG_VERBOSE);
+        }
+        return connection;
+    }
+
     /**
      * Necessary information already part of the response so grab it and format it.
+     * The detailed result is fetched once and shared with the superclass through a caching connection.
      */
     public void handleResponse(MetadataConnection metadataConnection, SFDCMDAPIAntTask.StatusResult response)
             throws ConnectionException {
         
-        if (junitreportdir != null) {
-            
-            DeployResult result = metadataConnection.checkDeployStatus(response.getId(), true);
-            DeployDetails details = result.getDetails();
-            RunTestsResult rtr = details.getRunTestResult();
-            
-            log("successes: " + rtr.getSuccesses().length, Project.MSG_VERBOSE);
-            log("failures: " + rtr.getFailures().length, Project.MSG_VERBOSE);
+        metrics.phase("deploy", executeStart);
+        CachingMetadataConnection connection = CachingMetadataConnection.wrap(metadataConnection);
+        try {
+            if (needsTestResult()) {
+                
+                DeployResult result = connection.checkDeployStatus(response.getId(), true);
+                metrics.result(result);
+                DeployDetails details = result.getDetails();
+                report(details.getRunTestResult());
+            }
             
-            new XmlReport(junitreportdir).report(rtr);
+            try {
+                // This sometimes throws an ArrayIndexOutOfBoundsException.
+                // So when there is one fall back to a hopefully fixed version of the code.
+                // If the method is ever fixed this workaround will just never get called.
+                super.handleResponse(connection, response);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                fixedDecompiledHandleResponse(connection, response);
+            } catch (BuildException e) {
+                fixedDecompiledHandleResponse(connection, response);
+            }
+        } finally {
+            log("checkDeployStatus calls avoided by caching: " + connection.getAvoidedCalls());
         }
-        
+    }
+    
+    public void execute() throws BuildException {
+        metrics = new DeployMetrics();
+        executeStart = System.currentTimeMillis();
+        testResult = null;
+        coverageRegressions = new ArrayList<RunTestFailure>();
+        liveReport = null;
         try {
-            // This sometimes throws an ArrayIndexOutOfBoundsException.
-            // So when there is one fall back to a hopefully fixed version of the code.
-            // If the method is ever fixed this workaround will just never get called.
-            super.handleResponse(metadataConnection, response);
-        } catch (ArrayIndexOutOfBoundsException e) {
-            fixedDecompiledHandleResponse(metadataConnection, response);
-        } catch (BuildException e) {
-            fixedDecompiledHandleResponse(metadataConnection, response);
+            if (!shards.isEmpty()) {
+                executeSharded();
+            } else if (adaptivepoll || deltamanifest != null || quickdeployregistry != null) {
+                executeDeploy();
+            } else {
+                super.execute();
+            }
+            checkCoverageBaseline();
+        } finally {
+            // Removes the progress files whether or not the final report was written
+            if (liveReport != null) {
+                liveReport.close();
+                liveReport = null;
+            }
+            metrics.phase("total", executeStart);
+            writeMetrics();
         }
     }
-    
-    private void fixedDecompiledHandleResponse(MetadataConnection metadataConnection,
-                                               SFDCMDAPIAntTask.StatusResult response)
-            throws ConnectionException {
-        
-        // Some code related to debug logging removed from here...
-        
-        DeployResult result = metadataConnection.checkDeployStatus(response.getId(), true);
-        if (!result.isSuccess()) {
-            StringBuilder buf = new StringBuilder("Failures:\n");
-            DeployDetails details = result.getDetails();
-            handleDeployMessages(details.getComponentSuccesses(), buf);
-            handleDeployMessages(details.getComponentFailures(), buf);
-
-            RunTestsResult rtr = details.getRunTestResult();
-            if (rtr.getFailures() != null) {
-                RunTestFailure[] failures = rtr.getFailures();
-                for (RunTestFailure failure : failures) {
-                    String n = (failure.getNamespace() != null ? failure.getNamespace() + "." : "") + failure.getName();
-                    buf.append("Test failure, method: ").append(n).append(".")
-                            .append(failure.getMethodName()).append(" -- ")
-                            .append(failure.getMessage()).append(" stack ")
-                            .append(failure.getStackTrace()).append("\n\n");
-                }
+
+    // Only reached when the deploy succeeded
+    private void checkCoverageBaseline() {
+        if (coveragebaseline == null || testResult == null) {
+            return;
+        }
+        if (!coverageRegressions.isEmpty()) {
+            StringBuilder buf = new StringBuilder("Coverage dropped for " + coverageRegressions.size()
+                    + " classes and triggers:\n");
+            for (int i = 0; i < Math.min(failuresummarylimit, coverageRegressions.size()); i++) {
+                RunTestFailure regression = coverageRegressions.get(i);
+                buf.append((regression.getNamespace() != null ? regression.getNamespace() + "." : ""))
+                        .append(regression.getName()).append(": ").append(regression.getMessage()).append("\n");
             }
-            if (rtr.getCodeCoverageWarnings() != null) {
-                CodeCoverageWarning[] warnings = rtr.getCodeCoverageWarnings();
-                for (CodeCoverageWarning warning : warnings) {
-                    buf.append("Code coverage issue");
-                    if (warning.getName() != null) {
-                        String n = (warning.getNamespace() != null ? warning.getNamespace() + "." : "") +
-                                warning.getName();
-                        buf.append(", class: ").append(n);
-                    }
-                    buf.append(" -- ").append(warning.getMessage()).append("\n");
+            throw new BuildException(buf.toString());
+        }
+        if (updatecoveragebaseline) {
+            new CoverageBaseline(coveragebaseline).save(testResult);
+            log("coverage baseline " + coveragebaseline + " updated");
+        }
+    }
+
+    // A problem writing the metrics shouldn't hide the outcome of the deploy
+    private void writeMetrics() {
+        if (junitreportdir != null) {
+            try {
+                metrics.writePrometheus(new File(junitreportdir, DeployMetrics.PROMETHEUS_FILE_NAME));
+                metrics.writeJson(new File(junitreportdir, DeployMetrics.JSON_FILE_NAME));
+            } catch (BuildException e) {
+                log("unable to write the deploy metrics: " + e.getMessage(), Project.MSG_WARN);
+            }
+        }
+    }
+
+    private void executeDeploy() {
+        DeltaManifest manifest = null;
+        byte[] zip;
+        long start = System.currentTimeMillis();
+        if (deltamanifest != null) {
+            if (deployRoot == null) {
+                throw new BuildException("deltamanifest needs deployRoot, it can't be used with zipFile");
+            }
+            manifest = new DeltaManifest(deltamanifest, Runtime.getRuntime().availableProcessors());
+            List<String> changed = manifest.scan(deployRoot);
+            metrics.phase("scan", start);
+            start = System.currentTimeMillis();
+            List<String> deleted = manifest.getDeleted();
+            log("hashed " + manifest.getHashed() + " files, " + changed.size() + " changed", Project.MSG_VERBOSE);
+            if (!deleted.isEmpty()) {
+                log("files deleted since the last deploy are not removed from the org: " + deleted, Project.MSG_WARN);
+            }
+            if (changed.isEmpty()) {
+                log("nothing has changed since the last deploy");
+                if (!checkonly) {
+                    manifest.save();
                 }
+                return;
             }
-            if (rtr.getFlowCoverageWarnings() != null) {
-                FlowCoverageWarning[] warnings = rtr.getFlowCoverageWarnings();
-                for (FlowCoverageWarning warning : warnings) {
-                    buf.append("Flow coverage issue");
-                    if (warning.getFlowName() != null) {
-                        String n = (warning.getFlowNamespace() != null ? warning.getFlowNamespace() + "." : "") +
-                                warning.getFlowName();
-                        buf.append(", flow: ").append(n);
+            zip = createDeltaZip(manifest, changed);
+        } else {
+            zip = zip();
+        }
+        metrics.phase("zip", start);
+        try {
+            MetadataConnection connection = getMetadataConnection();
+            String[] tests = getRunTests();
+            TestLevel level = testLevel(tests);
+            String org = quickdeployregistry != null ? orgId(connection) : null;
+            if (quickdeployregistry != null && org == null) {
+                log("the org can't be identified from the session so quickdeployregistry is not used", Project.MSG_WARN);
+            }
+            QuickDeployRegistry registry = org != null ? new QuickDeployRegistry(quickdeployregistry) : null;
+            String packageHash = registry != null ? QuickDeployRegistry.hash(zip, quickDeployOptions(level, tests)) : null;
+            if (registry != null && !checkonly) {
+                String validationId = registry.find(packageHash, org, System.currentTimeMillis());
+                DeployResult result = validationId != null
+                        ? quickDeploy(connection, registry, packageHash, org, validationId)
+                        : null;
+                if (result != null) {
+                    if (manifest != null && result.isSuccess()) {
+                        manifest.save();
                     }
-                    buf.append(" -- ").append(warning.getMessage()).append("\n");
+                    failOnError(result);
+                    return;
                 }
-                getMissingFlowCoverage(rtr, buf);
             }
-            throw new BuildException(buf.toString());
+            start = System.currentTimeMillis();
+            String id = connection.deploy(zip, createDeployOptions(level, tests)).getId();
+            metrics.phase("upload", start);
+            log("deploy " + id + " started");
+            start = System.currentTimeMillis();
+            DeployResult result = waitForCompletion(connection, id);
+            metrics.phase("wait", start);
+            metrics.result(result);
+            log("deploy " + id + " " + result.getStatus());
+            if (needsTestResult()) {
+                report(result.getDetails().getRunTestResult());
+            }
+            if (manifest != null && result.isSuccess() && !checkonly) {
+                manifest.save();
+            }
+            if (registry != null && result.isSuccess() && checkonly) {
+                registry.put(packageHash, org, id, result.getCompletedDate() != null
+                        ? result.getCompletedDate().getTimeInMillis()
+                        : System.currentTimeMillis());
+                log("validation " + id + " recorded for a quick deploy");
+            }
+            failOnError(result);
+        } catch (ConnectionException e) {
+            throw new BuildException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while waiting for the deploy", e);
+        }
+    }
+
+    // Null when the validation can't be deployed any more so the caller does a full deploy
+    private DeployResult quickDeploy(MetadataConnection connection, QuickDeployRegistry registry, String packageHash,
+            String org, String validationId) throws ConnectionException, InterruptedException {
+        long start = System.currentTimeMillis();
+        String id;
+        try {
+            id = connection.deployRecentValidation(validationId);
+        } catch (SoapFaultException e) {
+            log("validation " + validationId + " can't be quick deployed so deploying in full: " + e.getMessage(),
+                    Project.MSG_WARN);
+            registry.remove(packageHash, org);
+            return null;
+        }
+        metrics.phase("upload", start);
+        log("quick deploy " + id + " of validation " + validationId + " started");
+        start = System.currentTimeMillis();
+        DeployResult result = waitForCompletion(connection, id);
+        metrics.phase("wait", start);
+        metrics.result(result);
+        log("quick deploy " + id + " " + result.getStatus());
+        if (needsTestResult()) {
+            // A quick deploy runs no tests so the report is of the tests the validation ran
+            report(connection.checkDeployStatus(validationId, true).getDetails().getRunTestResult());
+        }
+        if (result.isSuccess()) {
+            registry.remove(packageHash, org);
+        }
+        return result;
+    }
+
+    // A validation only stands in for a deploy that would have run the same tests
+    private String quickDeployOptions(TestLevel level, String[] tests) {
+        String[] sorted = tests.clone();
+        Arrays.sort(sorted);
+        return "testLevel=" + level + " runTests=" + Arrays.toString(sorted)
+                + " ignoreWarnings=" + ignoreWarnings + " rollbackOnError=" + rollbackOnError
+                + " singlePackage=" + singlePackage + " allowMissingFiles=" + allowMissingFiles
+                + " autoUpdatePackage=" + autoUpdatePackage + " purgeOnDelete=" + purgeOnDelete;
+    }
+
+    // A session id starts with the id of its org, e.g. 00D...!AQ..., so this works however the task logged in
+    private static String orgId(MetadataConnection connection) {
+        String sessionId = connection.getConfig() != null ? connection.getConfig().getSessionId() : null;
+        int bang = sessionId != null ? sessionId.indexOf('!') : -1;
+        return bang > 0 && sessionId.startsWith("00D") ? sessionId.substring(0, bang) : null;
+    }
+
+    // Falls back to the whole deploy root when a change can't be expressed as a delta
+    private byte[] createDeltaZip(DeltaManifest manifest, List<String> changed) {
+        DeltaPackage delta = new DeltaPackage(deployRoot, manifest.getPaths());
+        for (String path : changed) {
+            if (!delta.add(path)) {
+                log("deploying everything because " + path + " can't be part of a delta deploy");
+                return zip();
+            }
+        }
+        log("delta deploy of " + delta.getComponentCount() + " components from " + changed.size() + " changed files");
+        return zip(delta.getPaths(), delta.packageXml());
+    }
+
+    private byte[] zip() {
+        if ((zipFile == null) == (deployRoot == null)) {
+            throw new BuildException("Exactly one of deployRoot and zipFile must be set");
+        }
+        if (zipFile != null) {
+            return DeployPackager.read(zipFile);
+        }
+        if (zipcachedir == null) {
+            return DeployZip.zip(deployRoot);
         }
+        DeployPackager packager = new DeployPackager(zipcachedir, Runtime.getRuntime().availableProcessors());
+        return read(packager, packager.pack(deployRoot));
     }
 
-    private void getMissingFlowCoverage(RunTestsResult rtr, StringBuilder buf) {
-        if (rtr != null && rtr.getFlowCoverage() != null) {
-            Integer counter = 0;
-            String flowWarningStr = "";
-            FlowCoverageResult[] flowCoverageResults = rtr.getFlowCoverage();
-            for (FlowCoverageResult flowCover : flowCoverageResults) {
-                if (flowCover.getNumElements() == flowCover.getNumElementsNotCovered()) {
-                    flowWarningStr += "\t - " + flowCover.getFlowName() + "\n";
-                    counter++;
+    private byte[] zip(Collection<String> paths, byte[] packageXml) {
+        if (zipcachedir == null) {
+            return DeployZip.zip(deployRoot, paths, packageXml);
+        }
+        DeployPackager packager = new DeployPackager(zipcachedir, Runtime.getRuntime().availableProcessors());
+        return read(packager, packager.pack(deployRoot, paths, packageXml));
+    }
+
+    private byte[] read(DeployPackager packager, File zip) {
+        try {
+            log("zip has " + packager.getDeflated() + " newly compressed and "
+                    + packager.getReused() + " cached entries", Project.MSG_VERBOSE);
+            return DeployPackager.read(zip);
+        } finally {
+            zip.delete();
+        }
+    }
+
+    // Lightweight polls until done then one detailed fetch
+    private DeployResult waitForCompletion(MetadataConnection connection, String id)
+            throws ConnectionException, InterruptedException {
+        DeployPoller poller = new DeployPoller(pollminwaitmillis, pollmaxwaitmillis,
+                polltimeoutmillis > 0 ? polltimeoutmillis : (long) maxPoll * pollWaitMillis);
+        poller.waitForCompletion(connection, id);
+        log("deploy " + id + " polled " + poller.getPolls() + " times", Project.MSG_VERBOSE);
+        return connection.checkDeployStatus(id, true);
+    }
+
+    private boolean needsTestResult() {
+        return junitreportdir != null || coveragereportdir != null || coveragebaseline != null;
+    }
+
+    private void report(RunTestsResult rtr) {
+        long start = System.currentTimeMillis();
+        
+        log("successes: " + rtr.getSuccesses().length, Project.MSG_VERBOSE);
+        log("failures: " + rtr.getFailures().length, Project.MSG_VERBOSE);
+        
+        if (junitreportdir != null) {
+            if (junitreportperclass) {
+                new XmlReport(junitreportdir).reportPerClass(rtr, junitreportthreads);
+            } else {
+                new XmlReport(junitreportdir).report(rtr);
+            }
+            if (testhistory != null) {
+                TestHistory history = new TestHistory(testhistory, testhistoryruns);
+                new XmlReport(junitreportdir).reportHistory(history, rtr, testhistoryslowest);
+                if (history.isRestarted()) {
+                    log("the test history " + testhistory + " could not be read so it has been started again",
+                            Project.MSG_WARN);
                 }
             }
-            buf.append("\nThere are " + counter + " flows that have no coverage:\n");
-            buf.append(flowWarningStr);
         }
+        if (coveragereportdir != null) {
+            new CoberturaReport(coveragereportdir).report(rtr);
+        }
+        if (coveragebaseline != null) {
+            testResult = rtr;
+            coverageRegressions = new CoverageBaseline(coveragebaseline).regressions(rtr);
+            if (junitreportdir != null) {
+                new XmlReport(junitreportdir).report(COVERAGE_REGRESSIONS_SUITE_NAME,
+                        Collections.<RunTestSuccess>emptyList(), coverageRegressions);
+            }
+        }
+        metrics.phase("report", start);
     }
 
-    private void handleDeployMessages(DeployMessage messages[], StringBuilder buf) {
-        for (DeployMessage message : messages) {
-            if (message.isSuccess()) {
+    private void executeSharded() {
+        String[] tests = getRunTests();
+        if (tests.length == 0) {
+            throw new BuildException("shard elements need the tests to be listed by runTest or batchtest elements");
+        }
+        if (!checkonly) {
+            log("each shard org enforces coverage from only its share of the tests, use checkonly=\"true\" with shards"
+                    + " to check the coverage of all of them together", Project.MSG_WARN);
+        }
+        List<List<String>> plan = ShardPlanner.plan(
+                Arrays.asList(tests),
+                TestDurations.read(junitreportdir),
+                shards.size() + 1
+                );
+        long start = System.currentTimeMillis();
+        final byte[] zip = zip();
+        metrics.phase("zip", start);
+        start = System.currentTimeMillis();
+
+        ExecutorService pool = Executors.newFixedThreadPool(plan.size());
+        // The deploys started and not yet complete by async id
+        final Map<String, MetadataConnection> running = new ConcurrentHashMap<String, MetadataConnection>();
+        // By planned shard, as shards with no tests are not deployed
+        Map<Integer, DeployResult> results = new TreeMap<Integer, DeployResult>();
+        try {
+            // Taken as they complete so that a failed shard stops the others at once
+            CompletionService<DeployResult> completion = new ExecutorCompletionService<DeployResult>(pool);
+            Map<Future<DeployResult>, Integer> futures = new HashMap<Future<DeployResult>, Integer>();
+            for (int i = 0; i < plan.size(); i++) {
+                final int shard = i;
+                final List<String> shardTests = plan.get(i);
+                if (shardTests.isEmpty()) {
+                    continue;
+                }
+                futures.put(completion.submit(new Callable<DeployResult>() {
+                    public DeployResult call() throws Exception {
+                        return deployShard(shard, zip, shardTests.toArray(new String[shardTests.size()]), running);
+                    }
+                }), shard);
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                Future<DeployResult> future = completion.take();
+                results.put(futures.get(future), future.get());
+            }
+            metrics.phase("deploy", start);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            cancelShards(running);
+            Thread.currentThread().interrupt();
+            throw new BuildException("Interrupted while waiting for the shards", e);
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            try {
+                // Lets a deploy call already made return its id so that it can be cancelled too
+                pool.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            cancelShards(running);
+            if (e.getCause() instanceof BuildException) {
+                throw (BuildException) e.getCause();
+            }
+            throw new BuildException("Shard deploy failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+
+        List<RunTestsResult> rtrs = new ArrayList<RunTestsResult>();
+        for (DeployResult result : results.values()) {
+            rtrs.add(result.getDetails().getRunTestResult());
+            metrics.result(result);
+        }
+        RunTestsResult merged = RunTestsResultMerger.merge(rtrs);
+        if (needsTestResult()) {
+            report(merged);
+        }
+
+        // A validation's coverage is checked once over all the shards, as each only ran some of the tests
+        StringBuilder failures = new StringBuilder();
+        for (Map.Entry<Integer, DeployResult> entry : results.entrySet()) {
+            DeployResult result = entry.getValue();
+            if (result.isSuccess()) {
                 continue;
             }
-            String loc = message.getLineNumber() != 0
-                    ? "(" + message.getLineNumber() + "," + message.getColumnNumber()+ ")"
-                    : "";
-            if (loc.length() == 0 && !message.getFileName().equals(message.getFullName())) {
-                loc = "(" + message.getFullName() + ")";
+            FailureReport report = new FailureReport(result);
+            if (checkonly && report.hasCoverageWarnings()) {
+                report = report.withoutCoverage();
+                if (report.size() == 0) {
+                    continue;
+                }
+            }
+            int shard = entry.getKey() + 1;
+            failures.append("Shard ").append(shard).append(" ")
+                    .append(failureSummary(report, FAILURE_REPORT_NAME + "-shard-" + shard + ".xml")).append("\n");
+        }
+        if (checkonly) {
+            FailureReport report = FailureReport.coverage(merged);
+            if (report.hasCoverageWarnings()) {
+                failures.append("All shards ")
+                        .append(failureSummary(report, FAILURE_REPORT_NAME + "-coverage.xml")).append("\n");
             }
-            buf.append(message.getFileName()).append(":").append(message.getProblem()).append("\n");
         }
+        if (failures.length() > 0) {
+            throw new BuildException(failures.toString());
+        }
+    }
+
+    private DeployResult deployShard(int shard, byte[] zip, String[] tests, Map<String, MetadataConnection> running)
+            throws ConnectionException, InterruptedException {
+        MetadataConnection connection = shard == 0 ? getMetadataConnection() : shardConnection(shards.get(shard - 1));
+        String id = connection.deploy(zip, createDeployOptions(TestLevel.RunSpecifiedTests, tests)).getId();
+        running.put(id, connection);
+        log("shard " + (shard + 1) + " deploy " + id + " running " + tests.length + " test classes");
+        log("shard " + (shard + 1) + " tests: " + Arrays.asList(tests), Project.MSG_VERBOSE);
+        DeployResult result = waitForCompletion(connection, id);
+        running.remove(id);
+        log("shard " + (shard + 1) + " deploy " + id + " " + result.getStatus());
+        return result;
+    }
+
+    // Once one shard has failed the others are not waited for, so their deploys are stopped
+    private void cancelShards(Map<String, MetadataConnection> running) {
+        for (Map.Entry<String, MetadataConnection> entry : running.entrySet()) {
+            log("cancelling deploy " + entry.getKey() + " as another shard failed", Project.MSG_WARN);
+            try {
+                entry.getValue().cancelDeploy(entry.getKey());
+            } catch (ConnectionException e) {
+                log("unable to cancel deploy " + entry.getKey() + ": " + e.getMessage(), Project.MSG_WARN);
+            } catch (RuntimeException e) {
+                log("unable to cancel deploy " + entry.getKey() + ": " + e.getMessage(), Project.MSG_WARN);
+            }
+        }
+    }
+
+    // Logs in to a shard org through a task configured with its credentials
+    private MetadataConnection shardConnection(Shard shard) throws ConnectionException {
+        DeployWithXmlReportTask task = new DeployWithXmlReportTask();
+        task.setProject(getProject());
+        task.setUsername(shard.getUsername());
+        task.setPassword(shard.getPassword());
+        task.setServerURL(shard.getServerurl());
+        if (shard.getSessionid() != null) {
+            task.setSessionId(shard.getSessionid());
+        }
+        return task.getMetadataConnection();
+    }
+
+    // The same precedence as DeployTask: testLevel, then runAllTests, then any listed tests
+    private TestLevel testLevel(String[] tests) {
+        if (testLevel != null) {
+            try {
+                return TestLevel.valueOf(testLevel);
+            } catch (IllegalArgumentException e) {
+                throw new BuildException("testLevel " + testLevel + " is not one of " + Arrays.asList(TestLevel.values()));
+            }
+        }
+        if (runAllTests) {
+            return TestLevel.RunAllTestsInOrg;
+        }
+        return tests.length > 0 ? TestLevel.RunSpecifiedTests : null;
+    }
+
+    private DeployOptions createDeployOptions(TestLevel level, String[] tests) {
+        DeployOptions options = new DeployOptions();
+        options.setCheckOnly(checkonly);
+        options.setIgnoreWarnings(ignoreWarnings);
+        options.setRollbackOnError(rollbackOnError);
+        options.setSinglePackage(singlePackage);
+        options.setAllowMissingFiles(allowMissingFiles);
+        options.setAutoUpdatePackage(autoUpdatePackage);
+        options.setPurgeOnDelete(purgeOnDelete);
+        if (level != null) {
+            options.setTestLevel(level);
+        }
+        if (level == TestLevel.RunSpecifiedTests) {
+            options.setRunTests(tests);
+        }
+        return options;
+    }
+
+    private void fixedDecompiledHandleResponse(MetadataConnection metadataConnection,
+                                               SFDCMDAPIAntTask.StatusResult response)
+            throws ConnectionException {
+        
+        // Some code related to debug logging removed from here...
+        
+        failOnError(metadataConnection.checkDeployStatus(response.getId(), true));
+    }
+
+    private void failOnError(DeployResult result) {
+        failOnError(result, FAILURE_REPORT_NAME + ".xml");
+    }
+
+    // All the failures go to a file in the report directory, the exception only gets the first few
+    private void failOnError(DeployResult result, String reportName) {
+        if (!result.isSuccess()) {
+            throw new BuildException(failureSummary(new FailureReport(result), reportName));
+        }
+    }
+
+    private String failureSummary(FailureReport report, String reportName) {
+        File file = junitreportdir != null ? report.write(junitreportdir, reportName) : null;
+        return report.summary(failuresummarylimit, file);
     }
 }
@@ -0,0 +1,64 @@
+package com.claimvantage.force.ant;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaPackageTest {
+
+    private static final File ROOT = new File("no-such-deploy-root");
+
+    @Test
+    public void classNameLosesExtension() throws Exception {
+        DeltaPackage delta = delta("classes/Foo.cls", "classes/Foo.cls-meta.xml");
+        assertTrue(delta.add("classes/Foo.cls-meta.xml"));
+        assertEquals(new HashSet<String>(Arrays.asList("classes/Foo.cls", "classes/Foo.cls-meta.xml")), delta.getPaths());
+        assertTrue(packageXml(delta).contains("<members>Foo</members>"));
+        assertTrue(packageXml(delta).contains("<name>ApexClass</name>"));
+    }
+
+    @Test
+    public void documentNameKeepsExtension() throws Exception {
+        DeltaPackage delta = delta("documents/Folder-meta.xml", "documents/Folder/logo.png",
+                "documents/Folder/logo.png-meta.xml");
+        assertTrue(delta.add("documents/Folder/logo.png"));
+        assertTrue(delta.add("documents/Folder/logo.png-meta.xml"));
+        String xml = packageXml(delta);
+        assertTrue(xml, xml.contains("<members>Folder/logo.png</members>"));
+        assertFalse(xml, xml.contains("<members>Folder/logo</members>"));
+        assertEquals(1, delta.getComponentCount());
+    }
+
+    @Test
+    public void foldersKeepTheirName() throws Exception {
+        DeltaPackage delta = delta("documents/Folder-meta.xml", "reports/Folder/Report.report");
+        assertTrue(delta.add("documents/Folder-meta.xml"));
+        assertTrue(delta.add("reports/Folder/Report.report"));
+        String xml = packageXml(delta);
+        assertTrue(xml, xml.contains("<members>Folder</members>"));
+        assertTrue(xml, xml.contains("<members>Folder/Report</members>"));
+    }
+
+    @Test
+    public void unknownPathsRejected() {
+        DeltaPackage delta = delta("package.xml", "unknown/Foo.bar");
+        assertFalse(delta.add("package.xml"));
+        assertFalse(delta.add("unknown/Foo.bar"));
+    }
+
+    private static DeltaPackage delta(String... paths) {
+        Set<String> all = new HashSet<String>(Arrays.asList(paths));
+        return new DeltaPackage(ROOT, all);
+    }
+
+    private static String packageXml(DeltaPackage delta) throws Exception {
+        return new String(delta.packageXml(), "UTF8");
+    }
+}
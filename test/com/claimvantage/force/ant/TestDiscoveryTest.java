@@ -0,0 +1,100 @@
+package com.claimvantage.force.ant;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestDiscoveryTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("test-discovery", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void markersFound() throws IOException {
+        assertTrue(isTest("@IsTest private class FooTest { }"));
+        assertTrue(isTest("private class FooTest { static testMethod void t() { } }"));
+        assertTrue(isTest("/** doc **/ @ isTest class FooTest { }"));
+    }
+
+    @Test
+    public void markersInCommentsAndLiteralsIgnored() throws IOException {
+        assertFalse(isTest("class Foo { String s = 'it\\'s @isTest'; }"));
+        assertFalse(isTest("class Foo { /* @isTest ** */ }"));
+        assertFalse(isTest("class Foo { // testMethod\n }"));
+    }
+
+    @Test
+    public void longStringLiteral() throws IOException {
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            literal.append(i % 100 == 0 ? "\\'" : "x");
+        }
+        assertFalse(isTest("class Foo { String s = '" + literal + "'; }"));
+        assertTrue(isTest("class Foo { String s = '" + literal + "'; @isTest static void t() { } }"));
+    }
+
+    @Test
+    public void longBlockComment() throws IOException {
+        StringBuilder comment = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            comment.append(i % 100 == 0 ? "*" : "x");
+        }
+        assertFalse(isTest("class Foo { /*" + comment + " @isTest */ }"));
+        assertTrue(isTest("class Foo { /*" + comment + "*/ @isTest static void t() { } }"));
+    }
+
+    @Test
+    public void unchangedFilesNotReadAgain() throws IOException {
+        File cls = write("Foo.cls", "@isTest class Foo { }");
+        File cache = new File(dir, "cache");
+        TestDiscovery discovery = new TestDiscovery(cache, 2);
+        assertEquals(1, discovery.testClasses(Arrays.asList(cls)).size());
+        assertEquals(1, discovery.getRead());
+        discovery = new TestDiscovery(cache, 2);
+        assertEquals(1, discovery.testClasses(Arrays.asList(cls)).size());
+        assertEquals(0, discovery.getRead());
+    }
+
+    private boolean isTest(String source) throws IOException {
+        File cls = write("Foo.cls", source);
+        Set<File> tests = new TestDiscovery(new File(dir, "cache-" + System.nanoTime()), 1).testClasses(Arrays.asList(cls));
+        cls.delete();
+        return tests.contains(cls);
+    }
+
+    private File write(String name, String content) throws IOException {
+        File file = new File(dir, name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}